@@ -0,0 +1,430 @@
+/*
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  BlockMaxIndex stores score upper-bound data for fixed-size docid
+ *  blocks of long inverted lists, in a sidecar file in the index
+ *  directory that is memory-mapped when the index is opened.  Query
+ *  evaluators use it to skip blocks of documents that can't reach the
+ *  top k (Block-Max pruning).
+ *  <p>
+ *  Each inverted list with more than one block's worth of postings is
+ *  divided into blocks of blockSize postings.  For each block, the file
+ *  records the last docid, the largest tf, and the shortest field
+ *  length of its documents.  These are model-independent, so bounds
+ *  for BM25 and Indri (and any parameter values) are computed from them
+ *  at query time.  Shorter lists use whole-list bounds.  The file has
+ *  six sections:
+ *  </p>
+ *  <pre>
+ *    header:          magic, index version, blockSize, number of lists,
+ *                     number of blocks, key data length
+ *    keyStarts:       int[lists+1], offset of each list's key in keyData
+ *    listBlocks:      int[lists+1], first block of each list
+ *    blockLastDocid:  int[blocks]
+ *    blockMaxTf:      int[blocks]
+ *    blockMinLength:  int[blocks]
+ *    keyData:         the keys, field + '\0' + term in UTF-8, in sorted order
+ *  </pre>
+ *  <p>
+ *  The file records the version of the index that it was built from
+ *  (see {@link SidecarFile}).  If the index changes, the file is rebuilt
+ *  the next time that it is opened.  Run this class to rebuild it offline and report its size.
+ *  </p>
+ */
+public class BlockMaxIndex {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The name of the sidecar file in the index directory.
+   */
+  public static final String FILE_NAME = "blockMax.idx";
+
+  /**
+   *  The default number of postings in a block.
+   */
+  public static final int DEFAULT_BLOCK_SIZE = 128;
+
+  private static final int MAGIC = 0x424d5831;	// "BMX1"
+  private static final int HEADER_BYTES = 4 + 8 + 4 + 4 + 4 + 4;
+
+  private static final String externalIdField = "externalId";
+
+  private final int blockSize;
+  private final int numLists;
+  private final int numBlocks;
+  private final long bytes;
+  private final IntBuffer keyStarts;
+  private final IntBuffer listBlocks;
+  private final IntBuffer blockLastDocid;
+  private final IntBuffer blockMaxTf;
+  private final IntBuffer blockMinLength;
+  private final ByteBuffer keyData;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Open the block-max index of an index, building the sidecar file
+   *  first if it is missing, was built from a different version of the
+   *  index, or has a different block size.  If the index directory
+   *  isn't writable, it is built in memory.
+   *  @param index The index.
+   *  @param blockSize The number of postings in a block.
+   *  @return the block-max index.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static BlockMaxIndex open (IndexContext index, int blockSize)
+    throws IOException {
+
+    //  Use the existing file if it matches the index.
+
+    ByteBuffer buf = SidecarFile.open (path (index), MAGIC,
+                                       SidecarFile.getVersion (index.getIndexReader ()));
+
+    if ((buf != null) &&
+        (buf.capacity () >= HEADER_BYTES) &&
+        (buf.getInt (12) == blockSize)) {
+      return new BlockMaxIndex (buf);
+    }
+
+    return rebuild (index, blockSize);
+  }
+
+  /**
+   *  Build the block-max index of an index, and save it so that the
+   *  next open can memory-map it.
+   *  @param index The index.
+   *  @param blockSize The number of postings in a block.
+   *  @return the block-max index.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static BlockMaxIndex rebuild (IndexContext index, int blockSize)
+    throws IOException {
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream ();
+    build (index, blockSize, SidecarFile.getVersion (index.getIndexReader ()),
+           new DataOutputStream (bytes));
+
+    return new BlockMaxIndex
+      (SidecarFile.save (path (index), ByteBuffer.wrap (bytes.toByteArray ())));
+  }
+
+  /**
+   *  Get the path of an index's block-max index file.
+   */
+  private static Path path (IndexContext index) {
+    return Paths.get (index.getIndexPath (), FILE_NAME);
+  }
+
+  /**
+   *  Write the block-max index of an index.  Fields and terms are
+   *  enumerated in sorted order, so keys are produced in sorted order.
+   */
+  private static void build (IndexContext index, int blockSize, long version,
+                             DataOutputStream out)
+    throws IOException {
+
+    IndexReader reader = index.getIndexReader ();
+    List<String> fields = new ArrayList<String> (MultiFields.getIndexedFields (reader));
+    Collections.sort (fields);
+
+    ByteArrayOutputStream keyData = new ByteArrayOutputStream ();
+    ByteArrayOutputStream startsBytes = new ByteArrayOutputStream ();
+    ByteArrayOutputStream listBlocksBytes = new ByteArrayOutputStream ();
+    ByteArrayOutputStream lastDocidBytes = new ByteArrayOutputStream ();
+    ByteArrayOutputStream maxTfBytes = new ByteArrayOutputStream ();
+    ByteArrayOutputStream minLengthBytes = new ByteArrayOutputStream ();
+    DataOutputStream starts = new DataOutputStream (startsBytes);
+    DataOutputStream listBlocks = new DataOutputStream (listBlocksBytes);
+    DataOutputStream lastDocids = new DataOutputStream (lastDocidBytes);
+    DataOutputStream maxTfs = new DataOutputStream (maxTfBytes);
+    DataOutputStream minLengths = new DataOutputStream (minLengthBytes);
+
+    int numLists = 0;
+    int numBlocks = 0;
+    PostingsEnum postings = null;
+
+    for (String field : fields) {
+      if (field.equals (externalIdField)) {
+        continue;
+      }
+
+      Terms terms = MultiFields.getTerms (reader, field);
+
+      if (terms == null) {
+        continue;
+      }
+
+      byte[] prefix = (field + "\0").getBytes (StandardCharsets.UTF_8);
+      TermsEnum termsEnum = terms.iterator ();
+      BytesRef term;
+
+      while ((term = termsEnum.next ()) != null) {
+        if (termsEnum.docFreq () <= blockSize) {
+          continue;
+        }
+
+        starts.writeInt (keyData.size ());
+        listBlocks.writeInt (numBlocks);
+        keyData.write (prefix);
+        keyData.write (term.bytes, term.offset, term.length);
+        numLists ++;
+
+        postings = termsEnum.postings (postings, PostingsEnum.FREQS);
+
+        int n = 0;
+        int lastDocid = 0;
+        int maxTf = 0;
+        int minLength = Integer.MAX_VALUE;
+        int docid;
+
+        while ((docid = postings.nextDoc ()) != DocIdSetIterator.NO_MORE_DOCS) {
+          lastDocid = docid;
+          maxTf = Math.max (maxTf, postings.freq ());
+          minLength = Math.min (minLength, index.getFieldLength (field, docid));
+
+          if (++ n == blockSize) {
+            lastDocids.writeInt (lastDocid);
+            maxTfs.writeInt (maxTf);
+            minLengths.writeInt (minLength);
+            numBlocks ++;
+            n = 0;
+            maxTf = 0;
+            minLength = Integer.MAX_VALUE;
+          }
+        }
+
+        if (n > 0) {
+          lastDocids.writeInt (lastDocid);
+          maxTfs.writeInt (maxTf);
+          minLengths.writeInt (minLength);
+          numBlocks ++;
+        }
+      }
+    }
+
+    starts.writeInt (keyData.size ());
+    listBlocks.writeInt (numBlocks);
+
+    out.writeInt (MAGIC);
+    out.writeLong (version);
+    out.writeInt (blockSize);
+    out.writeInt (numLists);
+    out.writeInt (numBlocks);
+    out.writeInt (keyData.size ());
+    startsBytes.writeTo (out);
+    listBlocksBytes.writeTo (out);
+    lastDocidBytes.writeTo (out);
+    maxTfBytes.writeTo (out);
+    minLengthBytes.writeTo (out);
+    keyData.writeTo (out);
+    out.flush ();
+  }
+
+  /**
+   *  Create a block-max index view over a mapped (or heap) buffer.
+   *  @param buf The block-max index file contents.
+   */
+  private BlockMaxIndex (ByteBuffer buf) {
+    this.blockSize = buf.getInt (12);
+    this.numLists = buf.getInt (16);
+    this.numBlocks = buf.getInt (20);
+    this.bytes = buf.capacity ();
+
+    int pos = HEADER_BYTES;
+    this.keyStarts = SidecarFile.slice (buf, pos, 4 * (this.numLists + 1)).asIntBuffer ();
+    pos += 4 * (this.numLists + 1);
+    this.listBlocks = SidecarFile.slice (buf, pos, 4 * (this.numLists + 1)).asIntBuffer ();
+    pos += 4 * (this.numLists + 1);
+    this.blockLastDocid = SidecarFile.slice (buf, pos, 4 * this.numBlocks).asIntBuffer ();
+    pos += 4 * this.numBlocks;
+    this.blockMaxTf = SidecarFile.slice (buf, pos, 4 * this.numBlocks).asIntBuffer ();
+    pos += 4 * this.numBlocks;
+    this.blockMinLength = SidecarFile.slice (buf, pos, 4 * this.numBlocks).asIntBuffer ();
+    pos += 4 * this.numBlocks;
+    this.keyData = SidecarFile.slice (buf, pos, buf.getInt (24));
+  }
+
+  /**
+   *  Compare the key of a list to a key, in unsigned byte order.
+   */
+  private int compareKey (int list, byte[] key) {
+    int start = this.keyStarts.get (list);
+    int len = this.keyStarts.get (list + 1) - start;
+    int n = Math.min (len, key.length);
+
+    for (int i = 0; i < n; i++) {
+      int c = (this.keyData.get (start + i) & 0xff) - (key[i] & 0xff);
+      if (c != 0) {
+        return c;
+      }
+    }
+
+    return len - key.length;
+  }
+
+  /**
+   *  Find the blocks of an inverted list.
+   *  @param field The field.
+   *  @param term The term.
+   *  @return the list number, or -1 if the list has no blocks.
+   */
+  public int findList (String field, String term) {
+    byte[] key = (field + "\0" + term).getBytes (StandardCharsets.UTF_8);
+    int lo = 0;
+    int hi = this.numLists - 1;
+
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int c = compareKey (mid, key);
+
+      if (c < 0) {
+        lo = mid + 1;
+      } else if (c > 0) {
+        hi = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   *  Get the first block of a list.
+   *  @param list A list number from findList.
+   *  @return the block number.
+   */
+  public int getFirstBlock (int list) {
+    return this.listBlocks.get (list);
+  }
+
+  /**
+   *  Get the block after the last block of a list.
+   *  @param list A list number from findList.
+   *  @return the block number.
+   */
+  public int getEndBlock (int list) {
+    return this.listBlocks.get (list + 1);
+  }
+
+  /**
+   *  Find the block of a list that contains a docid, i.e., the first
+   *  block whose last docid is at least docid.
+   *  @param from The first block to consider.
+   *  @param end The block after the last block of the list.
+   *  @param docid An internal docid.
+   *  @return the block number, or end if docid is after the list.
+   */
+  public int findBlock (int from, int end, int docid) {
+    int lo = from;
+    int hi = end;
+
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+
+      if (this.blockLastDocid.get (mid) < docid) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+
+    return lo;
+  }
+
+  /**
+   *  Get the last docid of a block.
+   *  @param block The block number.
+   *  @return the internal docid.
+   */
+  public int getBlockLastDocid (int block) {
+    return this.blockLastDocid.get (block);
+  }
+
+  /**
+   *  Get the largest tf of a block.
+   *  @param block The block number.
+   *  @return the maximum term frequency.
+   */
+  public int getBlockMaxTf (int block) {
+    return this.blockMaxTf.get (block);
+  }
+
+  /**
+   *  Get the shortest field length of a block's documents.
+   *  @param block The block number.
+   *  @return the minimum field length.
+   */
+  public int getBlockMinLength (int block) {
+    return this.blockMinLength.get (block);
+  }
+
+  /**
+   *  Get the number of postings in a block.
+   *  @return the block size.
+   */
+  public int getBlockSize () {
+    return this.blockSize;
+  }
+
+  /**
+   *  Get the size of the block-max index file.
+   *  @return the number of bytes.
+   */
+  public long getBytes () {
+    return this.bytes;
+  }
+
+  /**
+   *  Returns the size of the block-max index, for reporting.
+   *  @return A string version of the index size.
+   */
+  @Override
+  public String toString () {
+    return String.format ("lists: %d, blocks: %d, block size: %d, size: %d KB",
+                          this.numLists, this.numBlocks, this.blockSize,
+                          this.bytes / 1024);
+  }
+
+  /**
+   *  Rebuild the block-max index of an index, and report its size and
+   *  build time.
+   *  <pre>
+   *    java BlockMaxIndex INDEX_PATH [BLOCK_SIZE]
+   *  </pre>
+   *  @param args The index path and an optional block size.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static void main (String[] args) throws IOException {
+
+    if ((args.length < 1) || (args.length > 2)) {
+      System.err.println ("Usage:  java BlockMaxIndex INDEX_PATH [BLOCK_SIZE]");
+      System.exit (1);
+    }
+
+    int blockSize = (args.length > 1) ?
+      Integer.parseInt (args[1]) : DEFAULT_BLOCK_SIZE;
+    IndexContext index = new IndexContext (args[0], 0);
+
+    Timer timer = new Timer ();
+    timer.start ();
+    BlockMaxIndex blockMax = rebuild (index, blockSize);
+    timer.stop ();
+
+    System.out.println ("Block-max index:  " + blockMax);
+    System.out.println ("Build time:  " + timer);
+  }
+}
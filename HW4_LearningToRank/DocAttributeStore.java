@@ -0,0 +1,250 @@
+/*
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.util.*;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.Bits;
+
+/**
+ *  DocAttributeStore is a columnar store of the query-independent
+ *  document attributes that learning-to-rank features use.  Reading
+ *  these attributes from Lucene requires loading and parsing the
+ *  stored document; the store does that once per index and saves the
+ *  parsed values in a sidecar file in the index directory, which is
+ *  memory-mapped when the store is opened.
+ *  <p>
+ *  Each attribute is a primitive column indexed by internal docid:
+ *  </p>
+ *  <pre>
+ *    spamScore:    byte, the "spamScore" attribute
+ *    pageRank:     float, the "PageRank" attribute
+ *    urlDepth:     short, the number of '/' in the "rawUrl" attribute
+ *    isWikipedia:  bit, whether "rawUrl" contains "wikipedia.org"
+ *    bodyLength:   int, the length of the body field
+ *    titleLength:  int, the length of the title field
+ *  </pre>
+ *  <p>
+ *  Missing attributes, and the lengths of a field that has no norms,
+ *  are stored as 0.  The file records the version of the index that it
+ *  was built from (see {@link SidecarFile}), and is rebuilt if the index
+ *  changes.
+ *  </p>
+ */
+public class DocAttributeStore {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The name of the sidecar file in the index directory.
+   */
+  public static final String FILE_NAME = "docAttributes.col";
+
+  private static final int MAGIC = 0x44415431;	// "DAT1"
+  private static final int HEADER_BYTES = 4 + 8 + 4;
+
+  private static final Set<String> STORED_FIELDS =
+    new HashSet<String> (Arrays.asList ("spamScore", "PageRank", "rawUrl"));
+
+  private final ByteBuffer spamScore;
+  private final FloatBuffer pageRank;
+  private final ShortBuffer urlDepth;
+  private final ByteBuffer isWikipedia;
+  private final IntBuffer bodyLength;
+  private final IntBuffer titleLength;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Open the attribute store for an index, building the sidecar file
+   *  first if it is missing or was built from a different version of
+   *  the index.  If the index directory isn't writable, the store is
+   *  built in memory.
+   *  @param reader IndexReader object created in {@link Idx}.
+   *  @param indexPath The directory that contains the Lucene index.
+   *  @param lengths The index's document length store.
+   *  @return the attribute store.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static DocAttributeStore open (IndexReader reader,
+                                        String indexPath,
+                                        DocLengthStore lengths)
+    throws IOException {
+
+    long version = SidecarFile.getVersion (reader);
+    int maxDoc = reader.maxDoc ();
+    Path path = Paths.get (indexPath, FILE_NAME);
+
+    //  Use the existing file if it matches the index.
+
+    ByteBuffer buf = SidecarFile.open (path, MAGIC, version);
+
+    if ((buf != null) &&
+        (buf.capacity () == HEADER_BYTES + columnBytes (maxDoc)) &&
+        (buf.getInt (12) == maxDoc)) {
+      return new DocAttributeStore (buf, maxDoc);
+    }
+
+    //  Build the store, and save it so that the next open can
+    //  memory-map it.
+
+    buf = build (reader, lengths, version);
+    return new DocAttributeStore (SidecarFile.save (path, buf), maxDoc);
+  }
+
+  /**
+   *  The number of bytes used by the columns for maxDoc documents.
+   */
+  private static int columnBytes (int maxDoc) {
+    return maxDoc * (1 + 4 + 2 + 4 + 4) + (maxDoc + 7) / 8;
+  }
+
+  /**
+   *  Parse the stored attributes of every document into columns.
+   *  Documents are read in docid order.
+   */
+  private static ByteBuffer build (IndexReader reader, DocLengthStore lengths,
+                                   long version)
+    throws IOException {
+
+    int maxDoc = reader.maxDoc ();
+    ByteBuffer buf = ByteBuffer.allocate (HEADER_BYTES + columnBytes (maxDoc));
+
+    buf.putInt (0, MAGIC);
+    buf.putLong (4, version);
+    buf.putInt (12, maxDoc);
+
+    DocAttributeStore store = new DocAttributeStore (buf, maxDoc);
+    Bits liveDocs = MultiFields.getLiveDocs (reader);
+
+    //  A field without norms has no lengths; they are stored as 0.
+
+    FieldInfos fieldInfos = MultiFields.getMergedFieldInfos (reader);
+    boolean hasBodyLengths = hasNorms (fieldInfos, "body");
+    boolean hasTitleLengths = hasNorms (fieldInfos, "title");
+
+    for (int docid = 0; docid < maxDoc; docid++) {
+      if ((liveDocs != null) && (! liveDocs.get (docid))) {
+        continue;
+      }
+
+      Document d = reader.document (docid, STORED_FIELDS);
+
+      String spamScore = d.get ("spamScore");
+      if (spamScore != null) {
+        int s = Integer.parseInt (spamScore);
+        if ((s < Byte.MIN_VALUE) || (s > Byte.MAX_VALUE)) {
+          throw new IllegalArgumentException
+            ("spamScore " + s + " of docid " + docid + " is out of range.");
+        }
+        store.spamScore.put (docid, (byte) s);
+      }
+
+      String pageRank = d.get ("PageRank");
+      if (pageRank != null) {
+        store.pageRank.put (docid, Float.parseFloat (pageRank));
+      }
+
+      String rawUrl = d.get ("rawUrl");
+      if (rawUrl != null) {
+        int depth = rawUrl.length () - rawUrl.replace ("/", "").length ();
+        store.urlDepth.put (docid, (short) Math.min (depth, Short.MAX_VALUE));
+        if (rawUrl.contains ("wikipedia.org")) {
+          int b = docid >> 3;
+          store.isWikipedia.put (b, (byte) (store.isWikipedia.get (b) | (1 << (docid & 7))));
+        }
+      }
+
+      if (hasBodyLengths) {
+        store.bodyLength.put (docid, (int) lengths.getDocLength ("body", docid));
+      }
+
+      if (hasTitleLengths) {
+        store.titleLength.put (docid, (int) lengths.getDocLength ("title", docid));
+      }
+    }
+
+    return buf;
+  }
+
+  /**
+   *  Indicates whether a field has norms, i.e., document lengths.
+   */
+  private static boolean hasNorms (FieldInfos fieldInfos, String field) {
+    FieldInfo info = fieldInfos.fieldInfo (field);
+    return ((info != null) && info.hasNorms ());
+  }
+
+  /**
+   *  Create a store view over a mapped (or heap) buffer.
+   *  @param buf The store file contents.
+   *  @param maxDoc The number of documents in the index.
+   */
+  private DocAttributeStore (ByteBuffer buf, int maxDoc) {
+    int pos = HEADER_BYTES;
+    this.spamScore = SidecarFile.slice (buf, pos, maxDoc);
+    pos += maxDoc;
+    this.pageRank = SidecarFile.slice (buf, pos, 4 * maxDoc).asFloatBuffer ();
+    pos += 4 * maxDoc;
+    this.urlDepth = SidecarFile.slice (buf, pos, 2 * maxDoc).asShortBuffer ();
+    pos += 2 * maxDoc;
+    this.isWikipedia = SidecarFile.slice (buf, pos, (maxDoc + 7) / 8);
+    pos += (maxDoc + 7) / 8;
+    this.bodyLength = SidecarFile.slice (buf, pos, 4 * maxDoc).asIntBuffer ();
+    pos += 4 * maxDoc;
+    this.titleLength = SidecarFile.slice (buf, pos, 4 * maxDoc).asIntBuffer ();
+  }
+
+  /**
+   *  @param docid The internal docid.
+   *  @return the length of the document's body field.
+   */
+  public int getBodyLength (int docid) {
+    return this.bodyLength.get (docid);
+  }
+
+  /**
+   *  @param docid The internal docid.
+   *  @return the document's PageRank.
+   */
+  public float getPageRank (int docid) {
+    return this.pageRank.get (docid);
+  }
+
+  /**
+   *  @param docid The internal docid.
+   *  @return the document's spam score.
+   */
+  public int getSpamScore (int docid) {
+    return this.spamScore.get (docid);
+  }
+
+  /**
+   *  @param docid The internal docid.
+   *  @return the length of the document's title field.
+   */
+  public int getTitleLength (int docid) {
+    return this.titleLength.get (docid);
+  }
+
+  /**
+   *  @param docid The internal docid.
+   *  @return the number of '/' characters in the document's raw url.
+   */
+  public int getUrlDepth (int docid) {
+    return this.urlDepth.get (docid);
+  }
+
+  /**
+   *  @param docid The internal docid.
+   *  @return true if the document's raw url contains "wikipedia.org".
+   */
+  public boolean isWikipedia (int docid) {
+    return (this.isWikipedia.get (docid >> 3) & (1 << (docid & 7))) != 0;
+  }
+}
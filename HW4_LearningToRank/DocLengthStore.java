@@ -8,15 +8,17 @@ import java.util.Map;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.NumericDocValues;
 import org.apache.lucene.index.MultiDocValues;
-import org.apache.lucene.index.MultiFields;
 
 /**
  * DocLengthStore is used to access the document lengths of indexed docs.
+ * Lucene's norms iterators may not be shared among threads, so each
+ * thread gets its own, created the first time that it accesses a field.
  */
 public class DocLengthStore  {
 
   private IndexReader reader;
-  private  Map<String, NumericDocValues> values = new HashMap<String, NumericDocValues>();
+  private ThreadLocal<Map<String, NumericDocValues>> values =
+    ThreadLocal.withInitial(() -> new HashMap<String, NumericDocValues>());
 
   /**
    * @param reader IndexReader object created in {@link Idx}.
@@ -24,9 +26,6 @@ public class DocLengthStore  {
    */
   public DocLengthStore(IndexReader reader) throws IOException {
     this.reader = reader;
-    for (String field : MultiFields.getIndexedFields(reader)) {
-      this.values.put(field, MultiDocValues.getNormValues(reader, field));      
-    }
   }
 
   /**
@@ -39,6 +38,14 @@ public class DocLengthStore  {
    * @throws IOException Error accessing the Lucene index.
    */
   public long getDocLength(String fieldname, int docid) throws IOException {
-    return values.get(fieldname).get(docid);
+    Map<String, NumericDocValues> threadValues = this.values.get();
+    NumericDocValues norms = threadValues.get(fieldname);
+
+    if (norms == null) {
+      norms = MultiDocValues.getNormValues(this.reader, fieldname);
+      threadValues.put(fieldname, norms);
+    }
+
+    return norms.get(docid);
   }
 }
@@ -0,0 +1,128 @@
+/*
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+
+/**
+ * DocLengthStoreDense is a DocLengthStore that copies the document
+ * lengths of a field into an int[] indexed by internal docid, so that
+ * getDocLength is an array read instead of a lookup through Lucene's
+ * per-segment norms.  Each field's column is built the first time that
+ * the field's lengths are read, so opening the index costs nothing and
+ * fields that queries never use take no memory.  Columns are built
+ * until the memory budget is used up; fields that don't fit, and
+ * fields without norms, fall back to the norms, as in
+ * {@link DocLengthStore}.  When the budget is tight, the fields that
+ * are read first get columns.
+ */
+public class DocLengthStoreDense extends DocLengthStore {
+
+  /**
+   * Marks a field that uses the norms instead of a column.
+   */
+  private static final int[] NO_COLUMN = new int[0];
+
+  private final IndexReader reader;
+  private final long memoryBudget;
+  private final Map<String, int[]> columns = new ConcurrentHashMap<String, int[]>();
+  private long bytesUsed = 0;
+
+  /**
+   * @param reader IndexReader object created in {@link Idx}.
+   * @param memoryBudget The maximum number of bytes to use for columns.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  public DocLengthStoreDense(IndexReader reader, long memoryBudget) throws IOException {
+    super(reader);
+    this.reader = reader;
+    this.memoryBudget = memoryBudget;
+  }
+
+  /**
+   * Build the column of a field, if it has norms and fits in the
+   * memory budget.
+   *
+   * @param field The field.
+   * @return The column, or NO_COLUMN if the field uses the norms.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  private synchronized int[] buildColumn(String field) throws IOException {
+    int[] column = this.columns.get(field);
+
+    if (column != null) {
+      return column;
+    }
+
+    long columnBytes = 4L * this.reader.maxDoc();
+    column = NO_COLUMN;
+
+    if (this.bytesUsed + columnBytes <= this.memoryBudget) {
+
+      //  Fill the column one segment at a time.  Fields without norms
+      //  (e.g., externalId) don't have lengths.
+
+      int[] values = new int[this.reader.maxDoc()];
+      boolean hasNorms = false;
+
+      for (LeafReaderContext leaf : this.reader.leaves()) {
+        NumericDocValues norms = leaf.reader().getNormValues(field);
+
+        if (norms == null) {
+          continue;
+        }
+
+        hasNorms = true;
+        for (int d = 0; d < leaf.reader().maxDoc(); d++) {
+          values[leaf.docBase + d] = (int) norms.get(d);
+        }
+      }
+
+      if (hasNorms) {
+        column = values;
+        this.bytesUsed += columnBytes;
+      }
+    }
+
+    this.columns.put(field, column);
+    return column;
+  }
+
+  /**
+   * Returns the number of bytes used by the dense columns.
+   *
+   * @return long The number of bytes used.
+   */
+  public synchronized long getBytesUsed() {
+    return this.bytesUsed;
+  }
+
+  /**
+   * Returns the length of the specified field in the specified document.
+   *
+   * @param fieldname Name of field to access lengths. "body" is the default
+   * field.
+   * @param docid The internal docid in the lucene index.
+   * @return long The length of the field.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  @Override
+  public long getDocLength(String fieldname, int docid) throws IOException {
+    int[] column = this.columns.get(fieldname);
+
+    if (column == null) {
+      column = buildColumn(fieldname);
+    }
+
+    if (column != NO_COLUMN) {
+      return column[docid];
+    }
+
+    return super.getDocLength(fieldname, docid);
+  }
+}
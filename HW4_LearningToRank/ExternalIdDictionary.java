@@ -0,0 +1,258 @@
+/*
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Arrays;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  ExternalIdDictionary is a bidirectional map between internal and
+ *  external document ids that is stored in a sidecar file in the
+ *  index directory and memory-mapped when the index is opened.  It
+ *  lets {@link Idx} translate docids without decoding Lucene stored
+ *  fields or seeking in the term dictionary.
+ *  <p>
+ *  The file is built once per index from the terms of the external id
+ *  field, so its entries are already in external id order.  It has
+ *  five sections:
+ *  </p>
+ *  <pre>
+ *    header:       magic, index version, maxDoc, number of entries, data length
+ *    entryStarts:  int[entries+1], offset of each entry's external id in data
+ *    entryDocids:  int[entries], internal docid of each entry
+ *    docEntries:   int[maxDoc], entry of each internal docid, or -1
+ *    data:         the UTF-8 external ids, in sorted order
+ *  </pre>
+ *  <p>
+ *  The file records the version of the index that it was built from
+ *  (see {@link SidecarFile}).  If the index changes, the file is rebuilt
+ *  the next time that the index is opened.
+ *  </p>
+ */
+public class ExternalIdDictionary {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The name of the sidecar file in the index directory.
+   */
+  public static final String FILE_NAME = "externalId.dict";
+
+  private static final int MAGIC = 0x45494431;	// "EID1"
+  private static final int HEADER_BYTES = 4 + 8 + 4 + 4 + 4;
+
+  private final int maxDoc;
+  private final int numEntries;
+  private final IntBuffer entryStarts;
+  private final IntBuffer entryDocids;
+  private final IntBuffer docEntries;
+  private final ByteBuffer data;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Open the dictionary for an index, building the sidecar file first
+   *  if it is missing or was built from a different version of the
+   *  index.  If the index directory isn't writable, the dictionary is
+   *  built in memory.
+   *  @param reader IndexReader object created in {@link Idx}.
+   *  @param indexPath The directory that contains the Lucene index.
+   *  @param fieldName The field that stores external ids.
+   *  @return the dictionary, or null if the index has no external id terms.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static ExternalIdDictionary open (IndexReader reader,
+                                           String indexPath,
+                                           String fieldName)
+    throws IOException {
+
+    long version = SidecarFile.getVersion (reader);
+    Path path = Paths.get (indexPath, FILE_NAME);
+
+    //  Use the existing file if it matches the index.
+
+    ByteBuffer buf = SidecarFile.open (path, MAGIC, version);
+
+    if ((buf != null) &&
+        (buf.capacity () >= HEADER_BYTES) &&
+        (buf.getInt (12) == reader.maxDoc ())) {
+      return new ExternalIdDictionary (buf);
+    }
+
+    //  Build the dictionary contents, and save them so that the next
+    //  open can memory-map them.
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream ();
+
+    if (! build (reader, fieldName, version, new DataOutputStream (bytes))) {
+      return null;
+    }
+
+    return new ExternalIdDictionary
+      (SidecarFile.save (path, ByteBuffer.wrap (bytes.toByteArray ())));
+  }
+
+  /**
+   *  Write the dictionary for an index.  The external id field is
+   *  enumerated term by term, so entries are produced in sorted order.
+   *  @return false if the index has no external id terms, otherwise true.
+   */
+  private static boolean build (IndexReader reader, String fieldName,
+                                long version, DataOutputStream out)
+    throws IOException {
+
+    Terms terms = MultiFields.getTerms (reader, fieldName);
+
+    if (terms == null) {
+      return false;
+    }
+
+    int maxDoc = reader.maxDoc ();
+    int[] docEntries = new int[maxDoc];
+    Arrays.fill (docEntries, -1);
+
+    ByteArrayOutputStream data = new ByteArrayOutputStream ();
+    ByteArrayOutputStream startsBytes = new ByteArrayOutputStream ();
+    ByteArrayOutputStream docidsBytes = new ByteArrayOutputStream ();
+    DataOutputStream starts = new DataOutputStream (startsBytes);
+    DataOutputStream docids = new DataOutputStream (docidsBytes);
+
+    Bits liveDocs = MultiFields.getLiveDocs (reader);
+    TermsEnum termsEnum = terms.iterator ();
+    PostingsEnum postings = null;
+    BytesRef term;
+    int numEntries = 0;
+
+    while ((term = termsEnum.next ()) != null) {
+      postings = termsEnum.postings (postings, PostingsEnum.NONE);
+
+      int docid;
+      while ((docid = postings.nextDoc ()) != DocIdSetIterator.NO_MORE_DOCS) {
+        if ((liveDocs != null) && (! liveDocs.get (docid))) {
+          continue;
+        }
+
+        starts.writeInt (data.size ());
+        docids.writeInt (docid);
+        data.write (term.bytes, term.offset, term.length);
+        docEntries[docid] = numEntries;
+        numEntries ++;
+      }
+    }
+
+    starts.writeInt (data.size ());
+
+    out.writeInt (MAGIC);
+    out.writeLong (version);
+    out.writeInt (maxDoc);
+    out.writeInt (numEntries);
+    out.writeInt (data.size ());
+    startsBytes.writeTo (out);
+    docidsBytes.writeTo (out);
+    for (int i = 0; i < maxDoc; i++) {
+      out.writeInt (docEntries[i]);
+    }
+    data.writeTo (out);
+    out.flush ();
+
+    return true;
+  }
+
+  /**
+   *  Create a dictionary view over a mapped (or heap) buffer.
+   *  @param buf The dictionary file contents.
+   */
+  private ExternalIdDictionary (ByteBuffer buf) {
+    this.maxDoc = buf.getInt (12);
+    this.numEntries = buf.getInt (16);
+
+    int pos = HEADER_BYTES;
+    this.entryStarts = SidecarFile.slice (buf, pos, 4 * (this.numEntries + 1)).asIntBuffer ();
+    pos += 4 * (this.numEntries + 1);
+    this.entryDocids = SidecarFile.slice (buf, pos, 4 * this.numEntries).asIntBuffer ();
+    pos += 4 * this.numEntries;
+    this.docEntries = SidecarFile.slice (buf, pos, 4 * this.maxDoc).asIntBuffer ();
+    pos += 4 * this.maxDoc;
+    this.data = SidecarFile.slice (buf, pos, buf.getInt (20));
+  }
+
+  /**
+   *  Compare the external id of an entry to a key, in the order that
+   *  Lucene sorts terms (unsigned bytes).
+   */
+  private int compareEntry (int entry, byte[] key) {
+    int start = this.entryStarts.get (entry);
+    int len = this.entryStarts.get (entry + 1) - start;
+    int n = Math.min (len, key.length);
+
+    for (int i = 0; i < n; i++) {
+      int c = (this.data.get (start + i) & 0xff) - (key[i] & 0xff);
+      if (c != 0) {
+        return c;
+      }
+    }
+
+    return len - key.length;
+  }
+
+  /**
+   *  Get the external document id for an internal document id.
+   *  @param docid The internal document id.
+   *  @return the external document id, or null if the document has none.
+   */
+  public String getExternalDocid (int docid) {
+    int entry = this.docEntries.get (docid);
+
+    if (entry < 0) {
+      return null;
+    }
+
+    int start = this.entryStarts.get (entry);
+    byte[] b = new byte[this.entryStarts.get (entry + 1) - start];
+
+    for (int i = 0; i < b.length; i++) {
+      b[i] = this.data.get (start + i);
+    }
+
+    return new String (b, StandardCharsets.UTF_8);
+  }
+
+  /**
+   *  Get the internal document id for an external document id.
+   *  @param externalId The external document id.
+   *  @return the internal docid.
+   *  @throws Exception The external id doesn't exist, or isn't unique.
+   */
+  public int getInternalDocid (String externalId) throws Exception {
+    byte[] key = externalId.getBytes (StandardCharsets.UTF_8);
+    int lo = 0;
+    int hi = this.numEntries - 1;
+
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int c = compareEntry (mid, key);
+
+      if (c < 0) {
+        lo = mid + 1;
+      } else if (c > 0) {
+        hi = mid - 1;
+      } else {
+        if (((mid > 0) && (compareEntry (mid - 1, key) == 0)) ||
+            ((mid < this.numEntries - 1) && (compareEntry (mid + 1, key) == 0))) {
+          throw new Exception ("Multiple matches for external id " + externalId);
+        }
+        return this.entryDocids.get (mid);
+      }
+    }
+
+    throw new Exception ("External id " + externalId + " not found.");
+  }
+}
@@ -12,6 +12,12 @@ public class Feature {
     public double lambda;
     public double mu;
 
+    //collection statistics, bound once instead of per candidate document
+    private FieldStats stats;
+
+    //query-independent attributes, opened when the first feature needs them
+    private DocAttributeStore attributes;
+
     public Feature(String[] featureArrayIdx, Map<String, String> parameters) {
         this.featureArrayIdx = featureArrayIdx;
         this.parameters = parameters;
@@ -20,6 +26,15 @@ public class Feature {
         k3 = Double.valueOf(parameters.get("BM25:k_3"));
         mu = Double.valueOf(parameters.get("Indri:mu"));
         lambda = Double.valueOf(parameters.get("Indri:lambda"));
+        stats = Idx.getFieldStats();
+    }
+
+    //the attribute store is built on first use, so only open it when needed
+    private DocAttributeStore getAttributes() throws IOException {
+        if (attributes == null) {
+            attributes = Idx.getDocAttributeStore();
+        }
+        return attributes;
     }
 
     public HashMap<Integer, Double> constructFeatureMap(int docId, String[] terms) throws IOException {
@@ -28,21 +43,19 @@ public class Feature {
         //start by indicating different features
         //f1: Spam score for d (read from index)
         if (!featureArrayIdx[0].equals("")) {
-            int spamScore = Integer.parseInt(Idx.getAttribute("spamScore", docId));
+            int spamScore = getAttributes().getSpamScore(docId);
             featureScore.put(1, (double) spamScore);
         }
         //f2: Url depth for d(number of '/' in the rawUrl field)
         if (!featureArrayIdx[1].equals("")) {
-            String rawUrl = Idx.getAttribute("rawUrl", docId);
-            int depth = rawUrl.length() - rawUrl.replace("/", "").length();
+            int depth = getAttributes().getUrlDepth(docId);
             featureScore.put(2, (double) depth);
         }
 
         //f3: FromWikipedia score for d (1 if the rawUrl contains "wikipedia.org", otherwise 0).
         if (!featureArrayIdx[2].equals("")) {
-            String rawUrl = Idx.getAttribute("rawUrl", docId);
             int contains = 0;
-            if (rawUrl.contains("wikipedia.org")) {
+            if (getAttributes().isWikipedia(docId)) {
                 contains = 1;
             }
             featureScore.put(3, (double) contains);
@@ -50,7 +63,7 @@ public class Feature {
 
         //f4: PageRank score for d (read from index)
         if (!featureArrayIdx[3].equals("")) {
-            float prScore = Float.parseFloat(Idx.getAttribute("PageRank", docId));
+            float prScore = getAttributes().getPageRank(docId);
             featureScore.put(4, (double) prScore);
         }
 
@@ -119,12 +132,12 @@ public class Feature {
         }
         //f17: Custom feature - document length
         if (!featureArrayIdx[16].equals("")) {
-            double score = (double) Idx.getFieldLength("body", docId);
+            double score = (double) getAttributes().getBodyLength(docId);
             featureScore.put(17, score);
         }
         //f18: Custom features - title length
         if (!featureArrayIdx[17].equals("")) {
-            double score = (double) Idx.getFieldLength("title", docId);
+            double score = (double) getAttributes().getTitleLength(docId);
             featureScore.put(18, score);
         }
         return featureScore;
@@ -134,7 +147,8 @@ public class Feature {
         double result = 0.0;
 
         double doclen = (double) (Idx.getFieldLength(field, docid));
-        double avgLen = (double) Idx.getSumOfFieldLengths(field) / (double) Idx.getDocCount(field);
+        double avgLen = stats.getAvgFieldLength(field);
+        double N = (double) stats.getNumDocs();
         TermVector tv = new TermVector(docid, field);
         //the document don't have this field
         if (tv.stemsLength() == 0) {
@@ -148,7 +162,7 @@ public class Feature {
             }
             int tf = tv.stemFreq(idx);
             int df = tv.stemDf(idx);
-            double idf = Math.max(0.0, Math.log((double) Idx.getNumDocs() - (double) df + 0.5) / (double) df + 0.5);
+            double idf = Math.max(0.0, Math.log(N - (double) df + 0.5) / (double) df + 0.5);
             double tfw = tf / (tf + k1 * (1.0 - b + b * (doclen / avgLen)));
             double score = idf * tfw;
             result += score;
@@ -161,7 +175,7 @@ public class Feature {
 
         TermVector tv = new TermVector(docid, field);
 
-        double tmp_sum = (double) Idx.getSumOfFieldLengths(field);
+        double tmp_sum = (double) stats.getSumOfFieldLengths(field);
         double tmp_length = (double) Idx.getFieldLength(field, docid);
         double tf;
         int count = 0;
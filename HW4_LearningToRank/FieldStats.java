@@ -0,0 +1,98 @@
+/*
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+
+/**
+ * FieldStats is an immutable snapshot of the collection statistics
+ * that retrieval models use: the number of documents in the corpus,
+ * and for each indexed field, the number of documents that contain
+ * it, the sum of its lengths, and its average length.  It is computed
+ * once when {@link Idx} opens an index, so that scorers don't query
+ * the IndexReader for every document that they score.
+ */
+public class FieldStats {
+
+  /**
+   * The statistics of one field.
+   */
+  private static class Field {
+    private final int docCount;
+    private final long sumOfFieldLengths;
+    private final double avgFieldLength;
+
+    private Field(int docCount, long sumOfFieldLengths) {
+      this.docCount = docCount;
+      this.sumOfFieldLengths = sumOfFieldLengths;
+      this.avgFieldLength = (double) sumOfFieldLengths / (double) docCount;
+    }
+  }
+
+  private static final Field EMPTY_FIELD = new Field(0, 0);
+
+  private final long numDocs;
+  private final Map<String, Field> fields = new HashMap<String, Field>();
+
+  /**
+   * @param reader IndexReader object created in {@link Idx}.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  public FieldStats(IndexReader reader) throws IOException {
+    this.numDocs = reader.numDocs();
+    for (String field : MultiFields.getIndexedFields(reader)) {
+      this.fields.put(field, new Field(reader.getDocCount(field),
+                                       reader.getSumTotalTermFreq(field)));
+    }
+  }
+
+  private Field get(String fieldName) {
+    Field f = this.fields.get(fieldName);
+    return (f == null) ? EMPTY_FIELD : f;
+  }
+
+  /**
+   * Returns the average length of the specified field, i.e., the sum of
+   * its lengths divided by the number of documents that contain it.
+   *
+   * @param fieldName The field name.
+   * @return The average field length.
+   */
+  public double getAvgFieldLength(String fieldName) {
+    return get(fieldName).avgFieldLength;
+  }
+
+  /**
+   * Returns the number of documents that contain the specified field.
+   *
+   * @param fieldName The field name.
+   * @return The number of documents that contain the field.
+   */
+  public int getDocCount(String fieldName) {
+    return get(fieldName).docCount;
+  }
+
+  /**
+   * Returns the total number of documents in the corpus.
+   *
+   * @return The total number of documents.
+   */
+  public long getNumDocs() {
+    return this.numDocs;
+  }
+
+  /**
+   * Returns the total number of term occurrences in all instances of
+   * the specified field.
+   *
+   * @param fieldName The field name.
+   * @return The sum of the field's lengths.
+   */
+  public long getSumOfFieldLengths(String fieldName) {
+    return get(fieldName).sumOfFieldLengths;
+  }
+}
@@ -1,15 +1,10 @@
-/** 
+/**
  *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
  */
 import java.io.*;
-import java.nio.file.Paths;
 import java.util.*;
 
-import org.apache.lucene.document.Document;
 import org.apache.lucene.index.*;
-import org.apache.lucene.search.*;
-import org.apache.lucene.store.FSDirectory;
-import org.apache.lucene.util.BytesRef;
 
 /**
  *  Idx manages and provides access to Lucene indexes and auxiliary
@@ -20,6 +15,11 @@ import org.apache.lucene.util.BytesRef;
  *  federated search).  The Idx class designates one index the
  *  <i>current</i> index.  All requests are satisfied from the current
  *  index.  setCurrentIndex changes the current index.
+ *  </p><p>
+ *  Each open index is represented by an {@link IndexContext}.  Idx is
+ *  a thin static wrapper around the current IndexContext.  Code that
+ *  evaluates queries concurrently, or against several indexes at once,
+ *  should pass IndexContext objects explicitly instead.
  *  </p>
  */
 public class Idx {
@@ -31,13 +31,10 @@ public class Idx {
    */
   public static IndexReader INDEXREADER=null;
 
-  private static DocLengthStore DOCLENGTHSTORE=null;
+  private static IndexContext CURRENTCONTEXT=null;
 
-  private static HashMap<String,IndexReader> openIndexReaders =
-    new HashMap<String,IndexReader> ();
-  private static HashMap<String,DocLengthStore> openDocLengthStores =
-    new HashMap<String,DocLengthStore> ();
-  private static String externalIdField = new String ("externalId");
+  private static HashMap<String,IndexContext> openIndexContexts =
+    new HashMap<String,IndexContext> ();
 
   //  --------------- Methods ---------------------------------------
 
@@ -50,9 +47,20 @@ public class Idx {
    */
   public static String getAttribute (String attributeName, int docid)
     throws IOException {
+    return Idx.CURRENTCONTEXT.getAttribute (attributeName, docid);
+  }
 
-    Document d = Idx.INDEXREADER.document (docid);
-    return d.get (attributeName);
+  /**
+   *  Get the columnar store of query-independent document attributes
+   *  (spam score, PageRank, url depth, etc) for the current index.
+   *  The store is opened (and built, if necessary) the first time
+   *  that it is requested.
+   *  @return the attribute store
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static DocAttributeStore getDocAttributeStore ()
+    throws IOException {
+    return Idx.CURRENTCONTEXT.getDocAttributeStore ();
   }
 
   /**
@@ -63,7 +71,7 @@ public class Idx {
    */
   public static int getDocCount (String fieldName)
     throws IOException {
-    return Idx.INDEXREADER.getDocCount (fieldName);
+    return Idx.CURRENTCONTEXT.getDocCount (fieldName);
   }
 
   /**
@@ -74,9 +82,28 @@ public class Idx {
    *  @throws IOException Error accessing the Lucene index.
    */
   public static String getExternalDocid(int iid) throws IOException {
-    Document d = Idx.INDEXREADER.document(iid);
-    String eid = d.get(externalIdField);
-    return eid;
+    return Idx.CURRENTCONTEXT.getExternalDocid (iid);
+  }
+
+  /**
+   *  Get the external document ids for a batch of documents specified
+   *  by internal document ids.
+   *  @param iids The internal document ids, in any order.
+   *  @return the external document ids, parallel to iids
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static String[] getExternalDocids(int[] iids) throws IOException {
+    return Idx.CURRENTCONTEXT.getExternalDocids (iids);
+  }
+
+  /**
+   *  Get the collection statistics snapshot of the current index.
+   *  Scorers should fetch it once (e.g., when they are initialized)
+   *  rather than once per document.
+   *  @return the collection statistics
+   */
+  public static FieldStats getFieldStats () {
+    return Idx.CURRENTCONTEXT.getFieldStats ();
   }
 
   /**
@@ -88,7 +115,34 @@ public class Idx {
    */
   public static int getFieldLength (String fieldName, int docid)
     throws IOException {
-    return (int) Idx.DOCLENGTHSTORE.getDocLength (fieldName, docid);
+    return Idx.CURRENTCONTEXT.getFieldLength (fieldName, docid);
+  }
+
+  /**
+   *  Get the IndexContext of the current index.
+   *  @return the current IndexContext
+   */
+  public static IndexContext getIndexContext () {
+    return Idx.CURRENTCONTEXT;
+  }
+
+  /**
+   *  Get the IndexContext of an open index.
+   *  @param indexPath A directory that contains an open Lucene index.
+   *  @return the IndexContext
+   *  @throws IllegalArgumentException The specified index isn't open.
+   */
+  public static IndexContext getIndexContext (String indexPath)
+    throws IllegalArgumentException {
+
+    IndexContext context = openIndexContexts.get (indexPath);
+
+    if (context == null) {
+      throw new IllegalArgumentException (
+        "The index " + indexPath + " is not open");
+    }
+
+    return context;
   }
 
   /**
@@ -101,21 +155,7 @@ public class Idx {
    */
   public static int getInternalDocid(String externalId)
     throws Exception {
-
-    BytesRef termBytes = new BytesRef (externalId);
-    Term term = new Term (externalIdField, termBytes);
-    int df = Idx.INDEXREADER.docFreq (term);
-
-    if (df == 0) {
-      throw new Exception ("External id " + externalId + " not found.");
-    } else if (df > 1) {
-      throw new Exception ("Multiple matches for external id " + externalId);
-    }
-
-    PostingsEnum iList =
-      MultiFields.getTermPositionsEnum (Idx.INDEXREADER, externalIdField, termBytes);
-    iList.nextDoc();
-    return (iList.docID());
+    return Idx.CURRENTCONTEXT.getInternalDocid (externalId);
   }
 
   /**
@@ -124,7 +164,7 @@ public class Idx {
    *  @throws IOException Error accessing the Lucene index.
    */
   public static long getNumDocs () throws IOException {
-    return Idx.INDEXREADER.numDocs();
+    return Idx.CURRENTCONTEXT.getNumDocs ();
   }
 
   /**
@@ -137,7 +177,7 @@ public class Idx {
    */
   public static long getSumOfFieldLengths (String fieldName)
     throws IOException {
-    return Idx.INDEXREADER.getSumTotalTermFreq (fieldName);
+    return Idx.CURRENTCONTEXT.getSumOfFieldLengths (fieldName);
   }
 
 
@@ -152,50 +192,63 @@ public class Idx {
    */
   public static long getTotalTermFreq (String fieldName, String term)
     throws IOException {
-    return INDEXREADER.totalTermFreq (new Term (fieldName, new BytesRef (term)));
+    return Idx.CURRENTCONTEXT.getTotalTermFreq (fieldName, term);
   }
 
 
   /**
-   *  Open a Lucene index and the associated DocLengthStore.
+   *  Open a Lucene index and the associated DocLengthStore,
+   *  ExternalIdDictionary, and FieldStats.
    *  @param indexPath A directory that contains a Lucene index.
    *  @throws IllegalArgumentException Unable to open the index.
    *  @throws IOException Error accessing the index.
    */
   public static void open (String indexPath)
     throws IllegalArgumentException, IOException {
+    open (indexPath, 0);
+  }
 
-    IndexReader indexReader;
-    DocLengthStore docLengthStore;
+  /**
+   *  Open a Lucene index and the associated DocLengthStore,
+   *  ExternalIdDictionary, and FieldStats.  If docLengthBudget is
+   *  positive, each field's document lengths are copied into a dense
+   *  in-memory column (see DocLengthStoreDense) when the field is first
+   *  read, until the budget is used up.
+   *  @param indexPath A directory that contains a Lucene index.
+   *  @param docLengthBudget Bytes of memory for document length columns.
+   *  @throws IllegalArgumentException Unable to open the index.
+   *  @throws IOException Error accessing the index.
+   */
+  public static void open (String indexPath, long docLengthBudget)
+    throws IllegalArgumentException, IOException {
+    open (indexPath, docLengthBudget, IndexContext.Residency.DEFAULT);
+  }
 
-    //  Open the Lucene index
+  /**
+   *  Open a Lucene index and the associated DocLengthStore,
+   *  ExternalIdDictionary, and FieldStats, keeping the index files
+   *  resident in memory as specified.  See IndexContext.Residency.
+   *  @param indexPath A directory that contains a Lucene index.
+   *  @param docLengthBudget Bytes of memory for document length columns.
+   *  @param residency How the index files are kept in memory.
+   *  @throws IllegalArgumentException Unable to open the index.
+   *  @throws IOException Error accessing the index.
+   */
+  public static void open (String indexPath, long docLengthBudget,
+                           IndexContext.Residency residency)
+    throws IllegalArgumentException, IOException {
 
-    indexReader = 
-      DirectoryReader.open (FSDirectory.open (Paths.get (indexPath)));
-  
-    if (indexReader == null) {
-      throw new IllegalArgumentException ("Unable to open the index.");
-    }
-  
-    //  Lucene doesn't store field lengths the way that we want them,
-    //  so we have our own document length store.
-
-    docLengthStore = new DocLengthStore (indexReader);
-  
-    if (docLengthStore == null) {
-      throw new IllegalArgumentException ("Unable to open the document length store.");
-    }
+    IndexContext context = new IndexContext (indexPath, docLengthBudget, residency);
 
     //  Keep track of the open indexes.
 
-    openIndexReaders.put (indexPath, indexReader);
-    openDocLengthStores.put (indexPath, docLengthStore);
+    openIndexContexts.put (indexPath, context);
 
     //  The current index defaults to the first open index.
 
-    if (Idx.INDEXREADER == null) {
-      Idx.INDEXREADER = indexReader;
-      Idx.DOCLENGTHSTORE = docLengthStore;
+    if (Idx.CURRENTCONTEXT == null) {
+      Idx.CURRENTCONTEXT = context;
+      Idx.INDEXREADER = context.getIndexReader ();
     }
   }
 
@@ -207,15 +260,14 @@ public class Idx {
   public static void setCurrentIndex (String indexPath)
     throws IllegalArgumentException {
 
-    IndexReader indexReader = openIndexReaders.get (indexPath);
-    DocLengthStore docLengthStore = openDocLengthStores.get (indexPath);
+    IndexContext context = openIndexContexts.get (indexPath);
 
-    if ((indexReader == null) || (docLengthStore == null)) {
+    if (context == null) {
       throw new IllegalArgumentException (
         "An index must be open before it can be the current index");
     }
 
-    Idx.INDEXREADER = indexReader;
-    Idx.DOCLENGTHSTORE = docLengthStore;
+    Idx.CURRENTCONTEXT = context;
+    Idx.INDEXREADER = context.getIndexReader ();
   }
 }
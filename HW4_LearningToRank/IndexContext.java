@@ -0,0 +1,596 @@
+/**
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.file.Paths;
+import java.util.*;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.*;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  An IndexContext is one open Lucene index and the auxiliary data
+ *  structures that query evaluation uses with it: the document length
+ *  store, the external id dictionary, collection statistics, the
+ *  term statistics cache, and the document attribute store.
+ *  <p>
+ *  An IndexContext is safe to share among threads, so several queries
+ *  can be evaluated concurrently against one open index, or against
+ *  different indexes in the same JVM.  Query operators, InvList,
+ *  TermVector, and ScoreList accept an IndexContext explicitly.  The
+ *  static {@link Idx} API is a thin wrapper around the <i>current</i>
+ *  IndexContext, and is what most code uses.
+ *  </p><p>
+ *  An IndexContext may also be a <i>leaf view</i> of one index segment
+ *  (see forLeaf).  A leaf view shares the data structures of the whole
+ *  index, but its inverted lists contain only the documents in that
+ *  segment.  Their docids are rebased by the segment's doc base when
+ *  they are read, so they are whole-index docids.  Leaf views let one
+ *  query be evaluated on several segments in parallel.
+ *  </p>
+ */
+public class IndexContext {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  How the index files are kept resident in memory.
+   *  <pre>
+   *    DEFAULT:       Lucene's choice for the platform (usually mmap)
+   *    MMAP_PRELOAD:  mmap, and load every file into the page cache at open
+   *    HEAP:          copy the index into the Java heap at open
+   *    NIO:           positional reads through NIO, using the page cache
+   *  </pre>
+   */
+  public enum Residency { DEFAULT, MMAP_PRELOAD, HEAP, NIO };
+
+  private static final String externalIdField = new String ("externalId");
+
+  private final String indexPath;
+  private final IndexReader indexReader;
+  private final DocLengthStore docLengthStore;
+  private final ExternalIdDictionary externalIdDictionary;
+  private final FieldStats fieldStats;
+  private final TermStatsCache termStatsCache;
+  private volatile PostingCache postingCache = null;
+  private volatile QryIopCache qryIopCache = null;
+  private volatile BlockMaxIndex blockMaxIndex = null;
+  private DocAttributeStore docAttributeStore = null;
+  private final Map<String, Integer> minFieldLengths;
+  private final IndexContext root;
+  private final LeafReaderContext leaf;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Open a Lucene index and the associated DocLengthStore,
+   *  ExternalIdDictionary, and FieldStats.  If docLengthBudget is
+   *  positive, each field's document lengths are copied into a dense
+   *  in-memory column (see DocLengthStoreDense) when the field is first
+   *  read, until the budget is used up.
+   *  @param indexPath A directory that contains a Lucene index.
+   *  @param docLengthBudget Bytes of memory for document length columns.
+   *  @throws IllegalArgumentException Unable to open the index.
+   *  @throws IOException Error accessing the index.
+   */
+  public IndexContext (String indexPath, long docLengthBudget)
+    throws IllegalArgumentException, IOException {
+    this (indexPath, docLengthBudget, Residency.DEFAULT);
+  }
+
+  /**
+   *  Open a Lucene index and the associated DocLengthStore,
+   *  ExternalIdDictionary, and FieldStats, keeping the index files
+   *  resident in memory as specified.
+   *  @param indexPath A directory that contains a Lucene index.
+   *  @param docLengthBudget Bytes of memory for document length columns.
+   *  @param residency How the index files are kept in memory.
+   *  @throws IllegalArgumentException Unable to open the index.
+   *  @throws IOException Error accessing the index.
+   */
+  public IndexContext (String indexPath, long docLengthBudget,
+                       Residency residency)
+    throws IllegalArgumentException, IOException {
+
+    this.indexPath = indexPath;
+    this.root = this;
+    this.leaf = null;
+
+    //  Open the Lucene index
+
+    this.indexReader = DirectoryReader.open (openDirectory (indexPath, residency));
+
+    if (this.indexReader == null) {
+      throw new IllegalArgumentException ("Unable to open the index.");
+    }
+
+    //  Lucene doesn't store field lengths the way that we want them,
+    //  so we have our own document length store.
+
+    if (docLengthBudget > 0) {
+      this.docLengthStore = new DocLengthStoreDense (this.indexReader, docLengthBudget);
+    } else {
+      this.docLengthStore = new DocLengthStore (this.indexReader);
+    }
+
+    //  Translating between internal and external docids is frequent,
+    //  so a memory-mapped dictionary is built once per index.  If the
+    //  index has no external id terms, Lucene is used instead.
+
+    this.externalIdDictionary =
+      ExternalIdDictionary.open (this.indexReader, indexPath, externalIdField);
+
+    //  Collection statistics don't change while the index is open.
+
+    this.fieldStats = new FieldStats (this.indexReader);
+
+    //  The same terms are looked up repeatedly during query expansion
+    //  and feature generation, so their statistics are cached.
+
+    this.termStatsCache =
+      new TermStatsCache (this.indexReader, TermStatsCache.DEFAULT_CAPACITY);
+
+    this.minFieldLengths = new HashMap<String, Integer> ();
+  }
+
+  /**
+   *  Create a leaf view of an index.
+   *  @param root The IndexContext of the whole index.
+   *  @param leaf The index segment.
+   */
+  private IndexContext (IndexContext root, LeafReaderContext leaf) {
+    this.indexPath = root.indexPath;
+    this.indexReader = root.indexReader;
+    this.docLengthStore = root.docLengthStore;
+    this.externalIdDictionary = root.externalIdDictionary;
+    this.fieldStats = root.fieldStats;
+    this.termStatsCache = root.termStatsCache;
+    this.minFieldLengths = root.minFieldLengths;
+    this.root = root;
+    this.leaf = leaf;
+  }
+
+  /**
+   *  Get a view of one segment of this index.  Statistics, document
+   *  lengths, and docids are those of the whole index, but inverted
+   *  lists are read only from the segment.
+   *  @param leaf A segment of this index, from getIndexReader().leaves().
+   *  @return the leaf view
+   */
+  public IndexContext forLeaf (LeafReaderContext leaf) {
+    return new IndexContext (this.root, leaf);
+  }
+
+  /**
+   *  Open the Lucene Directory for an index with the requested
+   *  residency mode.
+   *  @param indexPath A directory that contains a Lucene index.
+   *  @param residency How the index files are kept in memory.
+   *  @return the Directory
+   *  @throws IOException Error accessing the index.
+   */
+  private static Directory openDirectory (String indexPath, Residency residency)
+    throws IOException {
+
+    switch (residency) {
+      case MMAP_PRELOAD:
+        MMapDirectory mmap = new MMapDirectory (Paths.get (indexPath));
+        mmap.setPreload (true);
+        return mmap;
+      case HEAP:
+        return new RAMDirectory (FSDirectory.open (Paths.get (indexPath)),
+                                 IOContext.READONCE);
+      case NIO:
+        return new NIOFSDirectory (Paths.get (indexPath));
+      default:
+        return FSDirectory.open (Paths.get (indexPath));
+    }
+  }
+
+  /**
+   *  Get the specified attribute from the specified document.
+   *  @param attributeName Name of attribute
+   *  @param docid The internal docid in the lucene index.
+   *  @return the attribute value
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public String getAttribute (String attributeName, int docid)
+    throws IOException {
+
+    Document d = this.indexReader.document (docid);
+    return d.get (attributeName);
+  }
+
+  /**
+   *  Get the columnar store of query-independent document attributes
+   *  (spam score, PageRank, url depth, etc).  The store is opened (and
+   *  built, if necessary) the first time that it is requested.
+   *  @return the attribute store
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public synchronized DocAttributeStore getDocAttributeStore ()
+    throws IOException {
+
+    if (this.root != this) {
+      return this.root.getDocAttributeStore ();
+    }
+
+    if (this.docAttributeStore == null) {
+      this.docAttributeStore =
+        DocAttributeStore.open (this.indexReader, this.indexPath,
+                                this.docLengthStore);
+    }
+
+    return this.docAttributeStore;
+  }
+
+  /**
+   *  Get the number of documents that contain the specified field.
+   *  @param fieldName the field name
+   *  @return the number of documents that contain the field
+   */
+  public int getDocCount (String fieldName) {
+    return this.fieldStats.getDocCount (fieldName);
+  }
+
+  /**
+   *  Get the docid of the first document of this context's segment.
+   *  Docids read from getPostings are relative to it.
+   *  @return the segment's docBase, or 0 if this context is the whole index
+   */
+  public int getDocBase () {
+    return (this.leaf == null) ? 0 : this.leaf.docBase;
+  }
+
+  /**
+   *  Get the document frequency (df) of a term in a field.  For a leaf
+   *  view, this is still the df in the whole index.
+   *  @param term The term, including its field.
+   *  @return The number of documents that contain the term
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int getDocFreq (Term term) throws IOException {
+    return this.termStatsCache.get (term).df;
+  }
+
+  /**
+   *  Get the external document id for a document specified by an
+   *  internal document id.
+   *  @param iid The internal document id of the document.
+   *  @return the external document id
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public String getExternalDocid (int iid) throws IOException {
+    if (this.externalIdDictionary != null) {
+      return this.externalIdDictionary.getExternalDocid (iid);
+    }
+
+    Document d = this.indexReader.document (iid);
+    String eid = d.get (externalIdField);
+    return eid;
+  }
+
+  /**
+   *  Get the external document ids for a batch of documents specified
+   *  by internal document ids.  If the index has no ExternalIdDictionary,
+   *  stored fields are read in docid order, which is much cheaper than
+   *  random access, and only the external id field is decoded.
+   *  @param iids The internal document ids, in any order.
+   *  @return the external document ids, parallel to iids
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public String[] getExternalDocids (int[] iids) throws IOException {
+
+    if (this.externalIdDictionary != null) {
+      String[] eids = new String[iids.length];
+
+      for (int i = 0; i < iids.length; i++)
+        eids[i] = this.externalIdDictionary.getExternalDocid (iids[i]);
+
+      return eids;
+    }
+
+    Integer[] order = new Integer[iids.length];
+
+    for (int i = 0; i < iids.length; i++)
+      order[i] = i;
+
+    Arrays.sort (order, (a, b) -> Integer.compare (iids[a], iids[b]));
+
+    String[] eids = new String[iids.length];
+    Set<String> fieldsToLoad = Collections.singleton (externalIdField);
+
+    for (int i = 0; i < order.length; i++) {
+      int iid = iids[order[i]];
+
+      if ((i > 0) && (iids[order[i-1]] == iid)) {
+        eids[order[i]] = eids[order[i-1]];
+      } else {
+        eids[order[i]] =
+          this.indexReader.document (iid, fieldsToLoad).get (externalIdField);
+      }
+    }
+
+    return eids;
+  }
+
+  /**
+   *  Get the collection statistics snapshot of the index.  Scorers
+   *  should fetch it once (e.g., when they are initialized) rather
+   *  than once per document.
+   *  @return the collection statistics
+   */
+  public FieldStats getFieldStats () {
+    return this.fieldStats;
+  }
+
+  /**
+   *  Get the length of the specified field in the specified document.
+   *  @param fieldName Name of field to access lengths.
+   *  @param docid The internal docid in the Lucene index.
+   *  @return the length of the field, including stopword positions.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int getFieldLength (String fieldName, int docid)
+    throws IOException {
+    return (int) this.docLengthStore.getDocLength (fieldName, docid);
+  }
+
+  /**
+   *  Get the shortest non-empty length of a field in the index.  Score
+   *  upper bounds use it.  It is computed from the document lengths
+   *  the first time that it is requested for a field.
+   *  @param fieldName The name of the field.
+   *  @return The minimum field length, or 0 if no document has the field.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int getMinFieldLength (String fieldName) throws IOException {
+
+    synchronized (this.minFieldLengths) {
+      Integer min = this.minFieldLengths.get (fieldName);
+
+      if (min == null) {
+        int length = Integer.MAX_VALUE;
+
+        for (int docid = 0; docid < this.indexReader.maxDoc (); docid++) {
+          int l = getFieldLength (fieldName, docid);
+
+          if (l > 0)
+            length = Math.min (length, l);
+        }
+
+        min = (length == Integer.MAX_VALUE) ? 0 : length;
+        this.minFieldLengths.put (fieldName, min);
+      }
+
+      return min;
+    }
+  }
+
+  /**
+   *  Get the directory that contains the Lucene index.
+   *  @return the index path
+   */
+  public String getIndexPath () {
+    return this.indexPath;
+  }
+
+  /**
+   *  Get the Lucene index.
+   *  @return the IndexReader
+   */
+  public IndexReader getIndexReader () {
+    return this.indexReader;
+  }
+
+  /**
+   *  Get the document frequency of a term in this context: the whole
+   *  index, or the segment of a leaf view.
+   *  @param term The term, including its field.
+   *  @return The number of documents in this context that contain the term
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int getLocalDocFreq (Term term) throws IOException {
+    return (this.leaf == null) ? getDocFreq (term) : this.leaf.reader ().docFreq (term);
+  }
+
+  /**
+   *  Get the collection term frequency of a term in this context: the
+   *  whole index, or the segment of a leaf view.
+   *  @param term The term, including its field.
+   *  @return The number of occurrences of the term in this context
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public long getLocalTotalTermFreq (Term term) throws IOException {
+    return (this.leaf == null) ?
+      getTotalTermFreq (term) : this.leaf.reader ().totalTermFreq (term);
+  }
+
+  /**
+   *  Get the postings of a term in this context: the whole index, or
+   *  the segment of a leaf view.  Docids are relative to getDocBase.
+   *  If the posting cache is enabled, the postings are read from it.
+   *  @param term The term, including its field.
+   *  @param flags PostingsEnum flags, e.g., PostingsEnum.POSITIONS.
+   *  @return the postings, or null if the term doesn't occur
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public PostingsEnum getPostings (Term term, int flags) throws IOException {
+    PostingCache cache = this.root.postingCache;
+
+    if (cache != null) {
+      PostingsEnum postings = cache.get (this, term, flags);
+
+      if (postings != null) {
+        return postings;
+      }
+    }
+
+    return getLucenePostings (term, flags);
+  }
+
+  /**
+   *  Get the postings of a term in this context from Lucene, bypassing
+   *  the posting cache.
+   *  @param term The term, including its field.
+   *  @param flags PostingsEnum flags, e.g., PostingsEnum.POSITIONS.
+   *  @return the postings, or null if the term doesn't occur
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  PostingsEnum getLucenePostings (Term term, int flags) throws IOException {
+    if (this.leaf == null) {
+      return MultiFields.getTermPositionsEnum (this.indexReader, term.field (),
+                                               term.bytes (), flags);
+    } else {
+      return this.leaf.reader ().postings (term, flags);
+    }
+  }
+
+  /**
+   *  Get the index segment that this context is restricted to.
+   *  @return the segment, or null if this context is the whole index
+   */
+  public LeafReaderContext getLeaf () {
+    return this.leaf;
+  }
+
+  /**
+   *  Get the cache of compressed inverted lists, e.g., to report hit
+   *  rates.
+   *  @return the posting cache, or null if it isn't enabled
+   */
+  public PostingCache getPostingCache () {
+    return this.root.postingCache;
+  }
+
+  /**
+   *  Cache compressed inverted lists across queries.  The cache is
+   *  shared by all leaf views of the index.
+   *  @param budget The maximum number of bytes of cached lists.
+   */
+  public void enablePostingCache (long budget) {
+    this.root.postingCache = new PostingCache (budget);
+  }
+
+  /**
+   *  Get the cache of inverted lists computed by #NEAR, #WINDOW, and
+   *  #SYN operators, e.g., to report hit rates.
+   *  @return the cache, or null if it isn't enabled
+   */
+  public QryIopCache getQryIopCache () {
+    return this.root.qryIopCache;
+  }
+
+  /**
+   *  Cache the inverted lists computed by #NEAR, #WINDOW, and #SYN
+   *  operators across queries.  The cache is shared by all leaf views
+   *  of the index.
+   *  @param budget The maximum number of bytes of cached lists.
+   */
+  public void enableQryIopCache (long budget) {
+    this.root.qryIopCache = new QryIopCache (budget);
+  }
+
+  /**
+   *  Get the block-max index, which query evaluators use to skip
+   *  blocks of documents that can't reach the top k.
+   *  @return the block-max index, or null if it isn't enabled
+   */
+  public BlockMaxIndex getBlockMaxIndex () {
+    return this.root.blockMaxIndex;
+  }
+
+  /**
+   *  Open the block-max index, building it first if it is missing or
+   *  out of date.  It is shared by all leaf views of the index.
+   *  @param blockSize The number of postings in a block.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void enableBlockMaxIndex (int blockSize) throws IOException {
+    this.root.blockMaxIndex = BlockMaxIndex.open (this.root, blockSize);
+  }
+
+  /**
+   *  Get the cache of term statistics, e.g., to report hit rates.
+   *  @return the term statistics cache
+   */
+  public TermStatsCache getTermStatsCache () {
+    return this.termStatsCache;
+  }
+
+  /**
+   * Get the internal document id for a document specified by its
+   * external id, e.g. clueweb09-enwp00-88-09710. If no such document
+   * exists, throw an exception.
+   * @param externalId The external docid in the Lucene index.
+   * @return iternal docid.
+   * @throws Exception Could not read the internal document id from the index.
+   */
+  public int getInternalDocid (String externalId)
+    throws Exception {
+
+    if (this.externalIdDictionary != null) {
+      return this.externalIdDictionary.getInternalDocid (externalId);
+    }
+
+    BytesRef termBytes = new BytesRef (externalId);
+    Term term = new Term (externalIdField, termBytes);
+    int df = this.indexReader.docFreq (term);
+
+    if (df == 0) {
+      throw new Exception ("External id " + externalId + " not found.");
+    } else if (df > 1) {
+      throw new Exception ("Multiple matches for external id " + externalId);
+    }
+
+    PostingsEnum iList =
+      MultiFields.getTermPositionsEnum (this.indexReader, externalIdField, termBytes);
+    iList.nextDoc ();
+    return (iList.docID ());
+  }
+
+  /**
+   *  Get the total number of documents in the corpus.
+   *  @return The total number of documents.
+   */
+  public long getNumDocs () {
+    return this.fieldStats.getNumDocs ();
+  }
+
+  /**
+   *  Get the total number of term occurrences contained in all
+   *  instances of the specified field in the corpus (e.g., add up the
+   *  lengths of every TITLE field in the corpus).
+   *  @param fieldName The field name.
+   *  @return The total number of term occurrence
+   */
+  public long getSumOfFieldLengths (String fieldName) {
+    return this.fieldStats.getSumOfFieldLengths (fieldName);
+  }
+
+  /**
+   *  Get the collection term frequency (ctf) of a term in
+   *  a field (e.g., the total number of times the term 'apple'
+   *  occurs in title fields.
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @return The total number of term occurrence
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public long getTotalTermFreq (String fieldName, String term)
+    throws IOException {
+    return getTotalTermFreq (new Term (fieldName, new BytesRef (term)));
+  }
+
+  /**
+   *  Get the collection term frequency (ctf) of a term in a field.
+   *  @param term The term, including its field.
+   *  @return The total number of term occurrence
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public long getTotalTermFreq (Term term) throws IOException {
+    return this.termStatsCache.get (term).ctf;
+  }
+}
@@ -0,0 +1,139 @@
+/**
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  IndexWarmer brings the parts of an index that queries use into
+ *  memory before queries are served, so that the first queries after
+ *  a restart aren't slowed down by disk reads.  An index can be warmed
+ *  by replaying a file of typical queries, or by reading the postings
+ *  of the terms with the highest document frequencies in each field.
+ *  Progress and timing are reported on stdout.
+ */
+public class IndexWarmer {
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Warm an index by replaying a query file.  Results are discarded.
+   *  @param index The index to warm.
+   *  @param queryFilePath A file of queries in the usual qid:query format.
+   *  @param model The retrieval model used to evaluate the queries.
+   *  @throws IOException Error accessing the index or the query file.
+   */
+  public static void warmQueries (IndexContext index, String queryFilePath,
+                                  RetrievalModel model)
+    throws IOException {
+
+    Timer timer = new Timer ();
+    timer.start ();
+
+    int numQueries = 0;
+
+    try (BufferedReader input =
+           new BufferedReader (new FileReader (queryFilePath))) {
+      String qLine;
+
+      while ((qLine = input.readLine ()) != null) {
+        int d = qLine.indexOf (':');
+
+        if (d < 0) {
+          continue;
+        }
+
+        QryEval.processQuery (qLine.substring (d + 1), model, index);
+        numQueries ++;
+
+        if (numQueries % 100 == 0) {
+          System.out.println ("Warm-up:  " + numQueries + " queries");
+        }
+      }
+    }
+
+    timer.stop ();
+    System.out.println ("Warm-up:  replayed " + numQueries +
+                        " queries from " + queryFilePath + " in " + timer);
+  }
+
+  /**
+   *  Warm an index by reading the postings, including positions, of
+   *  the n terms with the highest document frequencies in each field.
+   *  @param index The index to warm.
+   *  @param n The number of terms per field.
+   *  @throws IOException Error accessing the index.
+   */
+  public static void warmTopTerms (IndexContext index, int n)
+    throws IOException {
+
+    Timer timer = new Timer ();
+    timer.start ();
+
+    IndexReader reader = index.getIndexReader ();
+    long numPostings = 0;
+    int numTerms = 0;
+
+    for (String field : MultiFields.getIndexedFields (reader)) {
+      Terms terms = MultiFields.getTerms (reader, field);
+
+      if (terms == null) {
+        continue;
+      }
+
+      //  Find the top n terms with a min-heap ordered by df.
+
+      PriorityQueue<Map.Entry<BytesRef,Integer>> top =
+        new PriorityQueue<Map.Entry<BytesRef,Integer>> (
+          n + 1, (a, b) -> Integer.compare (a.getValue (), b.getValue ()));
+      TermsEnum termsEnum = terms.iterator ();
+      BytesRef term;
+
+      while ((term = termsEnum.next ()) != null) {
+        int df = termsEnum.docFreq ();
+
+        if ((top.size () < n) || (df > top.peek ().getValue ())) {
+          top.add (new AbstractMap.SimpleEntry<BytesRef,Integer> (
+                     BytesRef.deepCopyOf (term), df));
+
+          if (top.size () > n) {
+            top.poll ();
+          }
+        }
+      }
+
+      //  Read their postings.
+
+      long fieldPostings = 0;
+
+      for (Map.Entry<BytesRef,Integer> t : top) {
+        PostingsEnum postings =
+          MultiFields.getTermPositionsEnum (reader, field, t.getKey ());
+
+        if (postings == null) {
+          continue;
+        }
+
+        while (postings.nextDoc () != DocIdSetIterator.NO_MORE_DOCS) {
+          for (int i = postings.freq (); i > 0; i--) {
+            postings.nextPosition ();
+          }
+          fieldPostings ++;
+        }
+      }
+
+      System.out.println ("Warm-up:  " + field + ": " + top.size () +
+                          " terms, " + fieldPostings + " postings");
+      numTerms += top.size ();
+      numPostings += fieldPostings;
+    }
+
+    timer.stop ();
+    System.out.println ("Warm-up:  read " + numPostings + " postings of " +
+                        numTerms + " terms in " + timer);
+  }
+}
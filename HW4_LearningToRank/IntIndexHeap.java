@@ -0,0 +1,132 @@
+/**
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+/**
+ *  A binary min-heap of small integer items (e.g., query argument
+ *  indexes), each with an integer key (e.g., the argument's current
+ *  docid or location).  Items with equal keys are ordered by item, so
+ *  results don't depend on insertion order.  The heap uses primitive
+ *  arrays and doesn't allocate after it is constructed.
+ */
+public class IntIndexHeap {
+
+  private final int[] items;
+  private final int[] keys;		// indexed by item
+  private int size = 0;
+
+  /**
+   *  Constructor.
+   *  @param capacity The maximum item + 1.
+   */
+  public IntIndexHeap (int capacity) {
+    this.items = new int[capacity];
+    this.keys = new int[capacity];
+  }
+
+  /**
+   *  Remove all items.
+   */
+  public void clear () {
+    this.size = 0;
+  }
+
+  /**
+   *  Get the number of items in the heap.
+   *  @return The number of items.
+   */
+  public int size () {
+    return this.size;
+  }
+
+  /**
+   *  Add an item that isn't already in the heap.
+   *  @param item The item.
+   *  @param key The item's key.
+   */
+  public void push (int item, int key) {
+    this.keys[item] = key;
+    this.items[this.size] = item;
+    siftUp (this.size ++);
+  }
+
+  /**
+   *  Remove the item with the smallest key.
+   *  @return The item.
+   */
+  public int pop () {
+    int item = this.items[0];
+    this.items[0] = this.items[-- this.size];
+    siftDown (0);
+    return item;
+  }
+
+  /**
+   *  Get the item with the smallest key.
+   *  @return The item.
+   */
+  public int top () {
+    return this.items[0];
+  }
+
+  /**
+   *  Get the smallest key.
+   *  @return The key.
+   */
+  public int topKey () {
+    return this.keys[this.items[0]];
+  }
+
+  /**
+   *  Change the key of the item with the smallest key, e.g., after
+   *  the item advances.
+   *  @param key The item's new key.
+   */
+  public void updateTop (int key) {
+    this.keys[this.items[0]] = key;
+    siftDown (0);
+  }
+
+  private boolean less (int a, int b) {
+    return (this.keys[a] < this.keys[b]) ||
+           ((this.keys[a] == this.keys[b]) && (a < b));
+  }
+
+  private void siftUp (int i) {
+    int item = this.items[i];
+
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+
+      if (! less (item, this.items[parent]))
+        break;
+
+      this.items[i] = this.items[parent];
+      i = parent;
+    }
+
+    this.items[i] = item;
+  }
+
+  private void siftDown (int i) {
+    int item = this.items[i];
+
+    while (true) {
+      int c = 2 * i + 1;
+
+      if (c >= this.size)
+        break;
+
+      if ((c + 1 < this.size) && less (this.items[c + 1], this.items[c]))
+        c ++;
+
+      if (! less (this.items[c], item))
+        break;
+
+      this.items[i] = this.items[c];
+      i = c;
+    }
+
+    this.items[i] = item;
+  }
+}
@@ -37,49 +37,19 @@ public class InvList {
 
   /**
    *  Postings that contain information about the occurrence of the
-   *  term in individual documents.
+   *  term in individual documents.  They are stored in flat arrays.
+   *  The n'th posting has docid docids[n] and term frequency tfs[n],
+   *  and its positions are positions[posOffsets[n]] through
+   *  positions[posOffsets[n+1]-1].  Arrays grow by bulk copying.
+   *  Inverted lists that are built without positions have no
+   *  positions; posOffsets is all 0.
    */
-  public Vector<DocPosting> postings = new Vector<DocPosting>();
+  private int[] docids = EMPTY;
+  private int[] tfs = EMPTY;
+  private int[] posOffsets = { 0 };
+  private int[] positions = EMPTY;
 
-  //  --------------- Nested classes --------------------------------
-
-  /**
-   *  Utility class that makes it easier to construct postings.
-   */
-  public class DocPosting {
-
-    /**
-     *  The internal id of a document that contains the term in
-     *  the specified field.
-     */
-    public int docid = 0;
-
-    /**
-     *  Term frequency:  The number of times the term occurs in
-     *  the specified field of the document.
-     */
-    public int tf = 0;
-
-    /**
-     *  The locations where the term occurs in the specified field
-     *  of the document.
-     */
-    public Vector<Integer> positions = new Vector<Integer>();
-
-    public DocPosting(int d, int... locations) {
-      this.docid = d;
-      this.tf = locations.length;
-      for (int i = 0; i < locations.length; i++)
-        this.positions.add(locations[i]);
-    }
-
-    public DocPosting(int d, List<Integer> locations) {
-      this.docid = d;
-      this.tf = locations.size();
-      for (int j = 0; j < locations.size(); j++)
-        this.positions.add(locations.get(j));
-    }
-  }
+  private static final int[] EMPTY = new int[0];
 
   //  --------------- Methods ---------------------------------------
 
@@ -98,12 +68,40 @@ public class InvList {
   }
 
   /**
-   *  Get an inverted list from the index.
+   *  Get an inverted list from the current index.
    *  @param termString The processed (stemmed, lower-cased, etc) term string.
    *  @param fieldString The field that the term occurs in.
    *  @throws IOException Error accessing the Lucene index.
    */
   public InvList(String termString, String fieldString) throws IOException {
+    this(Idx.getIndexContext(), termString, fieldString);
+  }
+
+  /**
+   *  Get an inverted list from the index.
+   *  @param index The index to read the inverted list from.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvList(IndexContext index, String termString, String fieldString)
+    throws IOException {
+    this(index, termString, fieldString, true);
+  }
+
+  /**
+   *  Get an inverted list from the index, optionally without
+   *  positions.  An inverted list without positions has docids and
+   *  tfs only; it is cheaper to read from the index and smaller.
+   *  @param index The index to read the inverted list from.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param withPositions False if positions are not needed.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvList(IndexContext index, String termString, String fieldString,
+                 boolean withPositions)
+    throws IOException {
 
     //  Store the field name.  This is used by other query operators.
 
@@ -114,13 +112,24 @@ public class InvList {
     BytesRef termBytes = new BytesRef(termString);
     Term term = new Term(fieldString, termBytes);
 
-    if (Idx.INDEXREADER.docFreq(term) < 1)
+    if (index.getDocFreq(term) < 1)
       return;
 
-    //  Lookup the inverted list.
+    //  Lookup the inverted list.  A leaf view reads only its segment,
+    //  and its docids are rebased to index docids.
 
-    PostingsEnum iList =
-      MultiFields.getTermPositionsEnum (Idx.INDEXREADER, fieldString, termBytes); 
+    PostingsEnum iList = index.getPostings (
+      term, (withPositions) ? PostingsEnum.ALL : PostingsEnum.FREQS);
+    int docBase = index.getDocBase();
+
+    if (iList == null)
+      return;
+
+    //  Size the arrays from the term's statistics, so that they are
+    //  allocated once.
+
+    ensureCapacity (index.getLocalDocFreq(term),
+                    (withPositions) ? index.getLocalTotalTermFreq(term) : 0);
 
     //  Copy from Lucene inverted list format to our inverted list
     //  format. This is a little inefficient, but allows query
@@ -130,14 +139,42 @@ public class InvList {
     while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
 
       int tf = iList.freq();
-      int[] positions = new int[tf];
 
-      for (int j = 0; j < tf; j++)
-        positions[j] = iList.nextPosition();
+      if (withPositions) {
+        ensureCapacity (this.df + 1, this.ctf + tf);
 
-      this.postings.add(new DocPosting(iList.docID(), positions));
+        for (int j = 0; j < tf; j++)
+          this.positions[this.ctf + j] = iList.nextPosition();
+      } else {
+        ensureCapacity (this.df + 1, 0);
+      }
+
+      this.docids[this.df] = docBase + iList.docID();
+      this.tfs[this.df] = tf;
       this.df++;
       this.ctf += tf;
+      this.posOffsets[this.df] = (withPositions) ? this.ctf : 0;
+    }
+  }
+
+  /**
+   *  Make sure that the arrays can hold the specified number of
+   *  postings and positions.  Arrays grow by at least 50%.
+   *  @param numPostings The number of postings.
+   *  @param numPositions The number of positions.
+   */
+  private void ensureCapacity (long numPostings, long numPositions) {
+
+    if (numPostings > this.docids.length) {
+      int n = (int) Math.max (numPostings, this.docids.length + (this.docids.length >> 1));
+      this.docids = Arrays.copyOf (this.docids, n);
+      this.tfs = Arrays.copyOf (this.tfs, n);
+      this.posOffsets = Arrays.copyOf (this.posOffsets, n + 1);
+    }
+
+    if (numPositions > this.positions.length) {
+      int n = (int) Math.max (numPositions, this.positions.length + (this.positions.length >> 1));
+      this.positions = Arrays.copyOf (this.positions, n);
     }
   }
 
@@ -145,33 +182,120 @@ public class InvList {
    *  Append a posting to the posting list.  Posting must be appended
    *  in docid order, otherwise this method fails.
    *  @param docid The internal document id of the posting.
-   *  @param positions A list of positions where the term occurs.
+   *  @param locations An array whose first tf elements are the
+   *         positions where the term occurs, in ascending order; or
+   *         null if the inverted list doesn't store positions.
+   *  @param tf The number of positions.
    *  @return true if the posting was added successfully, otherwise false.
    */
-  public boolean appendPosting (int docid, List<Integer> positions) {
+  public boolean appendPosting (int docid, int[] locations, int tf) {
     
     //  A posting can only be appended if its docid is greater than
     //  the last docid.
 
     if ((this.df > 1) &&
-	(this.postings.get(this.df-1).docid >= docid))
+	(this.docids[this.df-1] >= docid))
       return false;
 
-    DocPosting p = new DocPosting (docid, positions);
+    int numPositions = this.posOffsets[this.df];
 
-    this.postings.add (p);
+    if (locations != null) {
+      ensureCapacity (this.df + 1, numPositions + tf);
+      System.arraycopy (locations, 0, this.positions, numPositions, tf);
+      numPositions += tf;
+    } else {
+      ensureCapacity (this.df + 1, 0);
+    }
+
+    this.docids[this.df] = docid;
+    this.tfs[this.df] = tf;
     this.df ++;
-    this.ctf += p.tf;
+    this.ctf += tf;
+    this.posOffsets[this.df] = numPositions;
     return true;
   }
 
+  /**
+   *  Find the first posting at or after posting n whose docid is at
+   *  least docid.  The search gallops (probes n, n+1, n+3, n+7, ...)
+   *  until it passes docid, and then does a binary search, so its
+   *  cost is logarithmic in the distance skipped rather than linear.
+   *  @param n The index of the posting to start from.
+   *  @param docid The internal document id to search for.
+   *  @return The index of the posting, or df if there is none.
+   */
+  public int advanceTo(int n, int docid) {
+
+    if ((n >= this.df) || (this.docids[n] >= docid))
+      return n;
+
+    //  Gallop.  docids[lo] < docid is always true.
+
+    int lo = n;
+    int step = 1;
+    int hi = n + step;
+
+    while ((hi < this.df) && (this.docids[hi] < docid)) {
+      lo = hi;
+      step <<= 1;
+      hi = n + step;
+    }
+
+    //  Binary search in (lo, hi].
+
+    hi = Math.min (hi, this.df);
+
+    while (lo + 1 < hi) {
+      int mid = (lo + hi) >>> 1;
+
+      if (this.docids[mid] < docid)
+        lo = mid;
+      else
+        hi = mid;
+    }
+
+    return hi;
+  }
+
+  /**
+   *  Get the approximate memory used by the inverted list.
+   *  @return The number of bytes used.
+   */
+  public long getBytesUsed() {
+    return 64 + 4L * (this.docids.length + this.tfs.length +
+                      this.posOffsets.length + this.positions.length);
+  }
+
   /**
    *  Get the n'th document id from the inverted list.
-   *  @param docid The index of the requested document.
+   *  @param n The index of the requested document.
    *  @return The internal document id.
    */
-  public int getDocid(int docid) {
-    return this.postings.get(docid).docid;
+  public int getDocid(int n) {
+    return this.docids[n];
+  }
+
+  /**
+   *  Get the j'th position in the n'th document of the inverted list.
+   *  @param n The index of the requested document.
+   *  @param j The index of the requested position, less than getTf(n).
+   *  @return The position.
+   */
+  public int getPosition(int n, int j) {
+    return this.positions[this.posOffsets[n] + j];
+  }
+
+  /**
+   *  Get the largest term frequency in the inverted list.
+   *  @return The maximum term frequency, or 0 if the list is empty.
+   */
+  public int getMaxTf() {
+    int maxTf = 0;
+
+    for (int n = 0; n < this.df; n++)
+      maxTf = Math.max(maxTf, this.tfs[n]);
+
+    return maxTf;
   }
 
   /**
@@ -180,7 +304,7 @@ public class InvList {
    *  @return The document's term frequency.
    */
   public int getTf(int n) {
-    return this.postings.get(n).tf;
+    return this.tfs[n];
   }
 
   /**
@@ -191,11 +315,11 @@ public class InvList {
     System.out.println("df:  " + this.df + ", ctf: " + this.ctf);
 
     for (int i = 0; i < this.df; i++) {
-      System.out.print("docid:  " + this.postings.elementAt(i).docid + ", tf: "
-          + this.postings.elementAt(i).tf + ", locs: ");
+      System.out.print("docid:  " + this.docids[i] + ", tf: "
+          + this.tfs[i] + ", locs: ");
 
-      for (int j = 0; j < this.postings.elementAt(i).tf; j++) {
-        System.out.print(this.postings.elementAt(i).positions.elementAt(j) + " ");
+      for (int j = 0; j < this.posOffsets[i+1] - this.posOffsets[i]; j++) {
+        System.out.print(getPosition(i, j) + " ");
       }
 
       System.out.println();
@@ -0,0 +1,576 @@
+/**
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *  MaxScoreEvaluator evaluates a BM25 #SUM query or an Indri #AND or
+ *  #WAND query with MaxScore dynamic pruning, keeping the top k
+ *  documents in a bounded ScoreList.
+ *  <p>
+ *  Each argument has a score upper bound (QrySopScore.getUpperBoundBM25).
+ *  The arguments are ordered by upper bound.  While the top k list is
+ *  full, the longest prefix of low-bound arguments whose bounds sum to
+ *  less than the list's lowest score is <i>non-essential</i>:  a
+ *  document that matches only those arguments can't enter the top k.
+ *  Candidates are drawn only from the essential arguments' lists.  The
+ *  non-essential arguments are advanced to each candidate, highest
+ *  bound first, and the candidate is dropped as soon as its partial
+ *  score plus the remaining bounds falls below the lowest score.
+ *  </p><p>
+ *  If the index has a BlockMaxIndex, each candidate is first checked
+ *  against the bounds of the blocks that contain it (Block-Max
+ *  pruning).  If their sum can't reach the lowest score, no document
+ *  up to the end of the shortest of those blocks can either, so the
+ *  essential arguments skip past it without scoring anything.
+ *  </p><p>
+ *  Indri scores are weighted geometric means, so bounds are combined
+ *  as sums of weighted logs.  An argument that doesn't match a document
+ *  contributes its default score, which depends on the document's
+ *  length.  An argument's <i>gain</i> is how much more it can
+ *  contribute by matching than the largest default score (that of an
+ *  empty document), and arguments are ordered by gain.  Once a
+ *  candidate is known, its lengths are known, so each unchecked
+ *  argument is bounded by the best score that a document of that
+ *  length can get from it (QrySopScore.getUpperBoundIndri).
+ *  </p><p>
+ *  Documents that survive are scored exactly as QrySopSum.getScoreBM25,
+ *  QrySopAnd.getScoreIndri, and QrySopWAnd.getscoreIndri score them
+ *  (the argument scores are combined in argument order), and only
+ *  documents that the top k list would reject are skipped, so rankings
+ *  are identical to exhaustive evaluation.
+ *  </p>
+ */
+public class MaxScoreEvaluator {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  Bounds are inflated by this fraction before they are compared to
+   *  scores, so that rounding in the bound computation can't prune a
+   *  document that ties or beats the lowest score.
+   */
+  private static final double SLACK = 1e-9;
+
+  /**
+   *  Whether queries that can use dynamic pruning do.
+   */
+  public static volatile boolean enabled = true;
+
+  private static final LongAdder postingsTotal = new LongAdder ();
+  private static final LongAdder postingsScored = new LongAdder ();
+  private static final LongAdder candidatesPruned = new LongAdder ();
+  private static final LongAdder blockSkips = new LongAdder ();
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Indicates whether a query can be evaluated with dynamic pruning:
+   *  a BM25 #SUM, or an Indri #AND or #WAND, of two or more scored
+   *  terms (or inverted list operators), whose results are collected
+   *  in a bounded ScoreList.
+   *  @param q The initialized query.
+   *  @param model The retrieval model.
+   *  @param r The list that the results are added to.
+   *  @return True if evaluate can be used.
+   */
+  public static boolean canEvaluate (Qry q, RetrievalModel model,
+                                     ScoreList r) {
+
+    if (! (enabled && (q.args.size () > 1) && (r.getCapacity () > 0))) {
+      return false;
+    }
+
+    for (Qry q_i : q.args) {
+      if (! (q_i instanceof QrySopScore)) {
+        return false;
+      }
+    }
+
+    //  The bounds assume that scores fall as length grows, and rise
+    //  with tf.
+
+    if (model instanceof RetrievalModelBM25) {
+      return ((q instanceof QrySopSum) &&
+              (RetrievalModelBM25.k1 >= 0) &&
+              (RetrievalModelBM25.b >= 0) && (RetrievalModelBM25.b <= 1));
+    }
+
+    if (model instanceof RetrievalModelIndri) {
+      if ((RetrievalModelIndri.mu < 0) ||
+          (RetrievalModelIndri.lambda < 0) || (RetrievalModelIndri.lambda > 1)) {
+        return false;
+      }
+
+      if (q instanceof QrySopAnd) {
+        return true;
+      }
+
+      if (q instanceof QrySopWAnd) {
+        for (double w : ((QrySopWAnd) q).weights) {
+          if (w < 0) {
+            return false;
+          }
+        }
+        return (((QrySopWAnd) q).ttlWeights > 0);
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   *  Evaluate a query, adding its top matches to a bounded ScoreList.
+   *  The query must be initialized, and canEvaluate must be true.
+   *  @param q The query.
+   *  @param model The retrieval model.
+   *  @param r The list that the results are added to.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static void evaluate (Qry q, RetrievalModel model, ScoreList r)
+    throws IOException {
+
+    if (model instanceof RetrievalModelIndri) {
+      evaluateIndri (q, model, r);
+    } else {
+      evaluateBM25 (q, model, r);
+    }
+  }
+
+  /**
+   *  Evaluate a BM25 #SUM query.
+   */
+  private static void evaluateBM25 (Qry q, RetrievalModel model, ScoreList r)
+    throws IOException {
+
+    int n = q.args.size ();
+    QrySopScore[] args = new QrySopScore[n];
+    double[] bound = new double[n];
+    long total = 0;
+
+    for (int i = 0; i < n; i++) {
+      args[i] = (QrySopScore) q.args.get (i);
+      bound[i] = args[i].getUpperBoundBM25 (model);
+      total += ((QryIop) args[i].args.get (0)).getListDf ();
+    }
+
+    //  order lists the arguments by increasing upper bound, and
+    //  prefixBound[j] is the sum of the first j+1 bounds in that order.
+
+    Integer[] sorted = new Integer[n];
+
+    for (int i = 0; i < n; i++) {
+      sorted[i] = i;
+    }
+
+    Arrays.sort (sorted, (a, b) -> Double.compare (bound[a], bound[b]));
+
+    int[] order = new int[n];
+    double[] prefixBound = new double[n];
+
+    for (int j = 0; j < n; j++) {
+      order[j] = sorted[j];
+      prefixBound[j] = ((j > 0) ? prefixBound[j - 1] : 0.0) + bound[order[j]];
+    }
+
+    //  The block-max lists of term arguments, and for each argument,
+    //  the block that contains the current candidate.
+
+    BlockMaxIndex blockMax = q.indexContext.getBlockMaxIndex ();
+    int[] block = new int[n];
+    int[] endBlock = new int[n];
+    double[] blockBound = new double[n];
+
+    for (int i = 0; i < n; i++) {
+      QryIop q_i = (QryIop) args[i].args.get (0);
+      int list = ((blockMax != null) && (q_i instanceof QryIopTerm)) ?
+        blockMax.findList (q_i.getField (), ((QryIopTerm) q_i).getTerm ()) : -1;
+
+      if (list >= 0) {
+        block[i] = blockMax.getFirstBlock (list);
+        endBlock[i] = blockMax.getEndBlock (list);
+        blockBound[i] = blockBound (blockMax, args[i], block[i], bound[i]);
+      } else {
+        block[i] = endBlock[i] = -1;
+        blockBound[i] = bound[i];
+      }
+    }
+
+    double[] scores = new double[n];
+    boolean[] matched = new boolean[n];
+    int firstEssential = 0;
+    long scored = 0;
+    long pruned = 0;
+    long skips = 0;
+
+    while (true) {
+
+      //  Arguments whose bounds can't reach the threshold together
+      //  become non-essential.  The threshold never falls.
+
+      double threshold = r.getMinCompetitiveScore ();
+
+      while ((firstEssential < n) &&
+             (prefixBound[firstEssential] * (1 + SLACK) < threshold)) {
+        firstEssential ++;
+      }
+
+      if (firstEssential == n) {
+        break;
+      }
+
+      //  The candidate is the smallest docid of the essential arguments.
+
+      int docid = Integer.MAX_VALUE;
+
+      for (int j = firstEssential; j < n; j++) {
+        QrySopScore q_i = args[order[j]];
+
+        if (q_i.docIteratorHasMatch (model)) {
+          docid = Math.min (docid, q_i.docIteratorGetMatch ());
+        }
+      }
+
+      if (docid == Integer.MAX_VALUE) {
+        break;
+      }
+
+      //  Check the bounds of the blocks that contain the candidate.
+
+      if (blockMax != null) {
+        double maxBlockScore = 0.0;
+        int rangeEnd = Integer.MAX_VALUE;
+
+        for (int i = 0; i < n; i++) {
+          if (block[i] < 0) {
+            maxBlockScore += blockBound[i];
+            continue;
+          }
+
+          int b = blockMax.findBlock (block[i], endBlock[i], docid);
+
+          if (b != block[i]) {
+            block[i] = b;
+            blockBound[i] = (b < endBlock[i]) ?
+              blockBound (blockMax, args[i], b, bound[i]) : 0.0;
+          }
+
+          maxBlockScore += blockBound[i];
+
+          if (b < endBlock[i]) {
+            rangeEnd = Math.min (rangeEnd, blockMax.getBlockLastDocid (b));
+          }
+        }
+
+        if (maxBlockScore * (1 + SLACK) < threshold) {
+          skips ++;
+
+          if (rangeEnd == Integer.MAX_VALUE) {
+            break;
+          }
+
+          for (int j = firstEssential; j < n; j++) {
+            args[order[j]].docIteratorAdvanceTo (rangeEnd + 1);
+          }
+          continue;
+        }
+      }
+
+      //  Score the essential arguments, then check the non-essential
+      //  arguments while the candidate can still be competitive.
+
+      double maxScore = (firstEssential > 0) ? prefixBound[firstEssential - 1] : 0.0;
+
+      for (int j = firstEssential; j < n; j++) {
+        int i = order[j];
+        matched[i] = (args[i].docIteratorHasMatch (model) &&
+                      (args[i].docIteratorGetMatch () == docid));
+
+        if (matched[i]) {
+          scores[i] = args[i].getScore (model);
+          maxScore += scores[i];
+          scored ++;
+        }
+      }
+
+      boolean competitive = true;
+
+      for (int j = firstEssential - 1; j >= 0; j--) {
+        if (maxScore * (1 + SLACK) < threshold) {
+          competitive = false;
+          break;
+        }
+
+        int i = order[j];
+        args[i].docIteratorAdvanceTo (docid);
+        matched[i] = (args[i].docIteratorHasMatch (model) &&
+                      (args[i].docIteratorGetMatch () == docid));
+        maxScore -= bound[i];
+
+        if (matched[i]) {
+          scores[i] = args[i].getScore (model);
+          maxScore += scores[i];
+          scored ++;
+        }
+      }
+
+      if (competitive) {
+        double score = 0.0;
+
+        for (int i = 0; i < n; i++) {
+          if (matched[i]) {
+            score += scores[i];
+          }
+        }
+
+        r.add (docid, score);
+      } else {
+        pruned ++;
+      }
+
+      for (int j = firstEssential; j < n; j++) {
+        QrySopScore q_i = args[order[j]];
+
+        if (q_i.docIteratorHasMatch (model) &&
+            (q_i.docIteratorGetMatch () == docid)) {
+          q_i.docIteratorAdvancePast (docid);
+        }
+      }
+    }
+
+    postingsTotal.add (total);
+    postingsScored.add (scored);
+    candidatesPruned.add (pruned);
+    blockSkips.add (skips);
+  }
+
+  /**
+   *  Evaluate an Indri #AND or #WAND query.
+   */
+  private static void evaluateIndri (Qry q, RetrievalModel model, ScoreList r)
+    throws IOException {
+
+    int n = q.args.size ();
+    QrySopScore[] args = new QrySopScore[n];
+    String[] fields = new String[n];
+    int[] maxTf = new int[n];
+    double[] exponent = new double[n];
+    double[] gain = new double[n];
+    double baseBound = 0.0;
+    long total = 0;
+
+    //  The exponents are the ones that the operator compiled.
+
+    for (int i = 0; i < n; i++) {
+      args[i] = (QrySopScore) q.args.get (i);
+      QryIop q_i = (QryIop) args[i].args.get (0);
+      fields[i] = q_i.getField ();
+      maxTf[i] = q_i.getListMaxTf ();
+      total += q_i.getListDf ();
+
+      if (q instanceof QrySopWAnd) {
+        exponent[i] = ((QrySopWAnd) q).getExponent (i);
+      } else {
+        exponent[i] = ((QrySopAnd) q).getExponent (i);
+      }
+
+      //  A document that doesn't match can score at most the default
+      //  score of an empty document; one that matches, at most the
+      //  score of the shortest document with the largest tf.
+
+      double defaultBound = exponent[i] * Math.log (args[i].getUpperBoundIndri (0, 0));
+      double matchBound = exponent[i] * Math.log (
+        args[i].getUpperBoundIndri (maxTf[i],
+                                    q.indexContext.getMinFieldLength (fields[i])));
+
+      baseBound += defaultBound;
+      gain[i] = Math.max (matchBound - defaultBound, 0.0);
+    }
+
+    //  order lists the arguments by increasing gain, and prefixGain[j]
+    //  is the sum of the first j+1 gains in that order.  A document
+    //  that matches only arguments order[0..j] scores at most
+    //  exp (baseBound + prefixGain[j]).
+
+    Integer[] sorted = new Integer[n];
+
+    for (int i = 0; i < n; i++) {
+      sorted[i] = i;
+    }
+
+    Arrays.sort (sorted, (a, b) -> Double.compare (gain[a], gain[b]));
+
+    int[] order = new int[n];
+    double[] prefixGain = new double[n];
+
+    for (int j = 0; j < n; j++) {
+      order[j] = sorted[j];
+      prefixGain[j] = ((j > 0) ? prefixGain[j - 1] : 0.0) + gain[order[j]];
+    }
+
+    BlockMaxIndex blockMax = q.indexContext.getBlockMaxIndex ();
+    int[] block = new int[n];
+    int[] endBlock = new int[n];
+
+    for (int i = 0; i < n; i++) {
+      QryIop q_i = (QryIop) args[i].args.get (0);
+      int list = ((blockMax != null) && (q_i instanceof QryIopTerm)) ?
+        blockMax.findList (fields[i], ((QryIopTerm) q_i).getTerm ()) : -1;
+
+      block[i] = (list >= 0) ? blockMax.getFirstBlock (list) : -1;
+      endBlock[i] = (list >= 0) ? blockMax.getEndBlock (list) : -1;
+    }
+
+    //  logScores[i] is the weighted log of argument i's score for the
+    //  candidate, or of its bound if it hasn't been checked.
+
+    double[] scores = new double[n];
+    double[] logScores = new double[n];
+    int firstEssential = 0;
+    long scored = 0;
+    long pruned = 0;
+
+    while (true) {
+
+      double minScore = r.getMinCompetitiveScore ();
+      double threshold = (minScore > 0) ? Math.log (minScore) : Double.NEGATIVE_INFINITY;
+
+      while ((firstEssential < n) &&
+             (baseBound + prefixGain[firstEssential] + SLACK < threshold)) {
+        firstEssential ++;
+      }
+
+      if (firstEssential == n) {
+        break;
+      }
+
+      int docid = Integer.MAX_VALUE;
+
+      for (int j = firstEssential; j < n; j++) {
+        QrySopScore q_i = args[order[j]];
+
+        if (q_i.docIteratorHasMatch (model)) {
+          docid = Math.min (docid, q_i.docIteratorGetMatch ());
+        }
+      }
+
+      if (docid == Integer.MAX_VALUE) {
+        break;
+      }
+
+      //  Score the essential arguments, and bound the non-essential
+      //  arguments by the candidate's lengths and their (block) max tf.
+
+      for (int j = firstEssential; j < n; j++) {
+        int i = order[j];
+
+        if (args[i].docIteratorHasMatch (model) &&
+            (args[i].docIteratorGetMatch () == docid)) {
+          scores[i] = args[i].getScore (model);
+          scored ++;
+        } else {
+          scores[i] = args[i].getDefaultScore (model, docid);
+        }
+
+        logScores[i] = exponent[i] * Math.log (scores[i]);
+      }
+
+      for (int j = 0; j < firstEssential; j++) {
+        int i = order[j];
+        int tf = maxTf[i];
+
+        if (block[i] >= 0) {
+          block[i] = blockMax.findBlock (block[i], endBlock[i], docid);
+          tf = (block[i] < endBlock[i]) ? blockMax.getBlockMaxTf (block[i]) : 0;
+        }
+
+        int length = q.indexContext.getFieldLength (fields[i], docid);
+        logScores[i] = exponent[i] * Math.log (args[i].getUpperBoundIndri (tf, length));
+      }
+
+      boolean competitive = true;
+
+      for (int j = firstEssential - 1; j >= -1; j--) {
+        double maxScore = 0.0;
+
+        for (int i = 0; i < n; i++) {
+          maxScore += logScores[i];
+        }
+
+        if (maxScore + SLACK < threshold) {
+          competitive = false;
+          break;
+        }
+
+        if (j < 0) {
+          break;
+        }
+
+        int i = order[j];
+        args[i].docIteratorAdvanceTo (docid);
+
+        if (args[i].docIteratorHasMatch (model) &&
+            (args[i].docIteratorGetMatch () == docid)) {
+          scores[i] = args[i].getScore (model);
+          scored ++;
+        } else {
+          scores[i] = args[i].getDefaultScore (model, docid);
+        }
+
+        logScores[i] = exponent[i] * Math.log (scores[i]);
+      }
+
+      if (competitive) {
+        double score = 1.0;
+
+        for (int i = 0; i < n; i++) {
+          score *= Math.pow (scores[i], exponent[i]);
+        }
+
+        r.add (docid, score);
+      } else {
+        pruned ++;
+      }
+
+      for (int j = firstEssential; j < n; j++) {
+        QrySopScore q_i = args[order[j]];
+
+        if (q_i.docIteratorHasMatch (model) &&
+            (q_i.docIteratorGetMatch () == docid)) {
+          q_i.docIteratorAdvancePast (docid);
+        }
+      }
+    }
+
+    postingsTotal.add (total);
+    postingsScored.add (scored);
+    candidatesPruned.add (pruned);
+  }
+
+  /**
+   *  Get the score bound of one block of an argument's inverted list.
+   *  It is never larger than the bound of the whole list.
+   */
+  private static double blockBound (BlockMaxIndex blockMax, QrySopScore q,
+                                    int block, double listBound) {
+    return Math.min (listBound,
+                     q.getUpperBoundBM25 (blockMax.getBlockMaxTf (block),
+                                          blockMax.getBlockMinLength (block)));
+  }
+
+  /**
+   *  Get the pruning statistics of all queries evaluated so far, for
+   *  reporting.
+   *  @return A string version of the statistics.
+   */
+  public static String getStatistics () {
+    long t = postingsTotal.sum ();
+    long s = postingsScored.sum ();
+    return String.format ("postings: %d, scored: %d, skipped: %.1f%%, " +
+                          "candidates pruned: %d, block skips: %d",
+                          t, s, (t == 0) ? 0.0 : 100.0 * (t - s) / t,
+                          candidatesPruned.sum (), blockSkips.sum ());
+  }
+}
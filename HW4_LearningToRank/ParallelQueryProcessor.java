@@ -0,0 +1,273 @@
+/**
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ *  ParallelQueryProcessor evaluates the queries of a query file with
+ *  several worker threads, and writes their results in query file
+ *  order, so the trec_eval output and the expansion query file are the
+ *  same as when the queries are processed one at a time.
+ *  <p>
+ *  Each worker repeatedly reads the next query from the query file, and
+ *  QryEval.processQueryLine writes the query's output to buffers.  The
+ *  calling thread is the reorder buffer:  it waits for the queries in
+ *  order, copies each query's buffers to the output files, and then
+ *  drops them.  Workers run at most 2 * numWorkers queries ahead of the
+ *  reorder buffer, so a slow query doesn't let the buffered output of
+ *  the queries after it grow without bound.  If a query fails, the
+ *  queries before it are written and its exception is thrown, as it
+ *  would be if the queries were processed one at a time, and the
+ *  workers stop taking queries.
+ *  </p><p>
+ *  Workers are platform threads, or virtual threads if the JVM has them
+ *  (Java 21 and later).  Console messages of different queries are
+ *  interleaved.
+ *  </p>
+ */
+public class ParallelQueryProcessor {
+
+  //  --------------- Constants and variables ---------------------
+
+  private final int numWorkers;
+  private final boolean virtual;
+
+  //  Per-worker statistics.  Each worker updates only its own slots.
+
+  private final long[] workerQueries;
+  private final long[] workerNanos;
+  private long elapsedNanos = 0;
+
+  /**
+   *  The state that the workers and the reorder buffer share while a
+   *  query file is processed.  A worker takes a permit before it reads
+   *  a query, and the reorder buffer returns the permit after it writes
+   *  the query's output.  results holds the queries that are read but
+   *  not written; the query after the last one completes with null.
+   */
+  private static class Batch {
+    private final BufferedReader input;
+    private final Semaphore permits;
+    private final ConcurrentHashMap<Integer, CompletableFuture<String[]>> results =
+      new ConcurrentHashMap<Integer, CompletableFuture<String[]>> ();
+    private int queries = 0;		// Guarded by input.
+    private volatile boolean done = false;
+
+    private Batch (BufferedReader input, int window) {
+      this.input = input;
+      this.permits = new Semaphore (window);
+    }
+
+    /**
+     *  Get the result of query i, which completes with the query's
+     *  trec_eval output and expansion query output.
+     */
+    private CompletableFuture<String[]> result (int i) {
+      return this.results.computeIfAbsent (i, k -> new CompletableFuture<String[]> ());
+    }
+
+    /**
+     *  Stop the workers from taking queries.  Each worker that wakes
+     *  up returns its permit, so every waiting worker wakes up.
+     */
+    private void finish () {
+      this.done = true;
+      this.permits.release ();
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Constructor.
+   *  @param numWorkers The number of queries that are evaluated at once.
+   *  @param virtual True to use virtual threads, false to use platform
+   *    threads.
+   */
+  public ParallelQueryProcessor (int numWorkers, boolean virtual) {
+    this.numWorkers = numWorkers;
+    this.virtual = virtual;
+    this.workerQueries = new long[numWorkers];
+    this.workerNanos = new long[numWorkers];
+  }
+
+  /**
+   *  Process the queries of a query file, and write their results in
+   *  query file order.
+   *  @param input The query file.
+   *  @param model The retrieval model determines how matching and scoring is done.
+   *  @param maxRankLength The number of results to write for each query.
+   *  @param parameters The parameters.
+   *  @param writer The trec_eval output.
+   *  @param writer1 The expansion query output, or null.
+   *  @throws Exception A query failed.
+   */
+  public void processQueries (BufferedReader input, RetrievalModel model,
+                              String maxRankLength,
+                              Map<String, String> parameters,
+                              PrintWriter writer, PrintWriter writer1)
+    throws Exception {
+
+    Batch batch = new Batch (input, 2 * this.numWorkers);
+    ExecutorService executor = newExecutor ();
+    long start = System.nanoTime ();
+
+    try {
+      for (int w = 0; w < this.numWorkers; w++) {
+        final int worker = w;
+
+        executor.execute (() -> work (worker, batch, model,
+                                      maxRankLength, parameters,
+                                      (writer1 != null)));
+      }
+
+      //  Write the results in query order.
+
+      for (int i = 0; ; i++) {
+        String[] output;
+
+        try {
+          output = batch.result (i).get ();
+        } catch (ExecutionException ex) {
+          Throwable cause = ex.getCause ();
+
+          if (cause instanceof Exception) {
+            throw (Exception) cause;
+          }
+          throw (Error) cause;
+        }
+
+        if (output == null) {
+          break;
+        }
+
+        writer.print (output[0]);
+
+        if (writer1 != null) {
+          writer1.print (output[1]);
+        }
+
+        batch.results.remove (i);
+        batch.permits.release ();
+      }
+    } finally {
+      batch.finish ();
+      executor.shutdown ();
+      executor.awaitTermination (Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+      this.elapsedNanos = System.nanoTime () - start;
+    }
+  }
+
+  /**
+   *  A worker's loop:  process queries until there are no more.
+   */
+  private void work (int worker, Batch batch, RetrievalModel model,
+                     String maxRankLength, Map<String, String> parameters,
+                     boolean hasExpansionOutput) {
+
+    while (true) {
+      batch.permits.acquireUninterruptibly ();
+
+      int i;
+      String qLine;
+
+      synchronized (batch.input) {
+        i = batch.queries;
+
+        try {
+          qLine = (batch.done) ? null : batch.input.readLine ();
+        } catch (IOException ex) {
+          batch.result (i).completeExceptionally (ex);
+          qLine = null;
+        }
+
+        if (qLine == null) {
+          batch.result (i).complete (null);
+          batch.finish ();
+          return;
+        }
+
+        batch.queries ++;
+      }
+
+      long start = System.nanoTime ();
+      StringWriter output = new StringWriter ();
+      StringWriter expansionOutput = new StringWriter ();
+
+      try (PrintWriter w = new PrintWriter (output);
+           PrintWriter w1 = new PrintWriter (expansionOutput)) {
+        QryEval.processQueryLine (qLine, model, maxRankLength,
+                                  parameters, w,
+                                  hasExpansionOutput ? w1 : null);
+        w.flush ();
+        w1.flush ();
+        batch.result (i).complete (new String[] { output.toString (),
+                                                  expansionOutput.toString () });
+      } catch (Throwable t) {
+        batch.result (i).completeExceptionally (t);
+      }
+
+      this.workerNanos[worker] += System.nanoTime () - start;
+      this.workerQueries[worker] ++;
+    }
+  }
+
+  /**
+   *  Create the executor that runs the workers.
+   *  @return the executor
+   */
+  private ExecutorService newExecutor () {
+
+    if (this.virtual) {
+
+      //  Virtual threads are found by reflection, so that this class
+      //  compiles with JDKs that don't have them.
+
+      try {
+        Method m = Executors.class.getMethod ("newVirtualThreadPerTaskExecutor");
+        return (ExecutorService) m.invoke (null);
+      } catch (ReflectiveOperationException ex) {
+        throw new IllegalArgumentException
+          ("Virtual threads require Java 21 or later.");
+      }
+    }
+
+    return Executors.newFixedThreadPool (this.numWorkers);
+  }
+
+  /**
+   *  Get the throughput of the workers, for reporting.
+   *  @return A string version of the statistics, one line for all of
+   *    the workers and one line per worker.
+   */
+  public String getStatistics () {
+
+    long queries = 0;
+
+    for (long q : this.workerQueries) {
+      queries += q;
+    }
+
+    double elapsed = this.elapsedNanos / 1e9;
+    StringBuilder s = new StringBuilder ();
+
+    s.append (String.format ("Query workers:  %d %s threads, %d queries in %.3f s, %.1f queries/s%n",
+                             this.numWorkers,
+                             this.virtual ? "virtual" : "platform",
+                             queries, elapsed,
+                             (elapsed > 0) ? queries / elapsed : 0.0));
+
+    for (int w = 0; w < this.numWorkers; w++) {
+      double busy = this.workerNanos[w] / 1e9;
+
+      s.append (String.format ("  worker %d:  %d queries, %.3f s busy, %.1f queries/s%n",
+                               w, this.workerQueries[w], busy,
+                               (busy > 0) ? this.workerQueries[w] / busy : 0.0));
+    }
+
+    return s.toString ();
+  }
+}
@@ -0,0 +1,411 @@
+/*
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.GrowableByteArrayDataOutput;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * PostingCache is a size-bounded cache of compressed inverted lists
+ * keyed by (field, term) and index segment.  Query expansion
+ * re-evaluates the original query inside the expanded query, and
+ * learning-to-rank reruns BM25, so the same inverted lists are read
+ * from Lucene many times.
+ * <p>
+ * Each cached list holds docid gaps, term frequencies, and, if they
+ * were requested, position gaps as variable-length integers.  Every
+ * SKIP_INTERVAL postings the list records a skip point (the docid
+ * before the block and the block's byte offset), so advance can jump
+ * over blocks as Lucene's skip lists do.  Lists are read through a
+ * PostingsEnum that decodes them on demand, so cached and uncached
+ * lists look the same to query operators.  The cache is split into
+ * stripes by the hash of the term.  Each stripe is an LRU map with its
+ * own lock and an equal share of the byte budget.  A list that is
+ * larger than a stripe's budget is not cached.
+ * </p>
+ */
+public class PostingCache {
+
+  private static final int STRIPES = 16;
+
+  /**
+   * The number of postings between skip points.
+   */
+  private static final int SKIP_INTERVAL = 128;
+
+  /**
+   * The approximate memory used by an entry, excluding its data.
+   */
+  private static final int ENTRY_OVERHEAD = 96;
+
+  /**
+   * A cache key: a term, the segment (leaf ord) that its postings
+   * were read from, or -1 for the whole index, and whether the list
+   * has positions.
+   */
+  private static class Key {
+    private final Term term;
+    private final int segment;
+    private final boolean positions;
+
+    private Key(Term term, int segment, boolean positions) {
+      this.term = term;
+      this.segment = segment;
+      this.positions = positions;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key k = (Key) o;
+      return (this.segment == k.segment) && (this.positions == k.positions)
+        && this.term.equals(k.term);
+    }
+
+    //  positions isn't hashed, so both lists of a term are in one stripe.
+
+    @Override
+    public int hashCode() {
+      return 31 * this.term.hashCode() + this.segment;
+    }
+  }
+
+  /**
+   * A compressed inverted list.  For each posting: the docid gap, the
+   * term frequency, and, if the list has positions, tf position gaps,
+   * as vInts.  Skip point i is the docid of posting
+   * (i + 1) * SKIP_INTERVAL - 1 and the byte offset of the posting
+   * after it.
+   */
+  private static class Entry {
+    private final byte[] data;
+    private final int df;
+    private final boolean positions;
+    private final int[] skipDocids;
+    private final int[] skipOffsets;
+
+    private Entry(byte[] data, int df, boolean positions,
+                  int[] skipDocids, int[] skipOffsets) {
+      this.data = data;
+      this.df = df;
+      this.positions = positions;
+      this.skipDocids = skipDocids;
+      this.skipOffsets = skipOffsets;
+    }
+
+    private long bytes() {
+      return this.data.length + 8L * this.skipDocids.length + ENTRY_OVERHEAD;
+    }
+  }
+
+  /**
+   * One stripe of the cache; an access-ordered map whose least
+   * recently used entries are evicted when it exceeds its budget.
+   */
+  private static class Stripe extends LinkedHashMap<Key, Entry> {
+    private static final long serialVersionUID = 1L;
+
+    private long bytes = 0;
+
+    private Stripe() {
+      super(16, 0.75f, true);
+    }
+  }
+
+  private final long stripeBudget;
+  private final Stripe[] stripes = new Stripe[STRIPES];
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /**
+   * @param budget The maximum number of bytes of cached lists.
+   */
+  public PostingCache(long budget) {
+    this.stripeBudget = budget / STRIPES;
+    for (int i = 0; i < STRIPES; i++) {
+      this.stripes[i] = new Stripe();
+    }
+  }
+
+  /**
+   * Returns the postings of a term in an index (or an index segment),
+   * from the cache if possible.  On a miss, the list is read from
+   * Lucene with the requested flags, compressed, and cached.  A list
+   * with positions also satisfies a request that doesn't need them.
+   *
+   * @param index The index, or a leaf view of one segment.
+   * @param term The term, including its field.
+   * @param flags PostingsEnum flags, e.g., PostingsEnum.POSITIONS.
+   * @return The postings, with segment-relative docids and positions;
+   *   or null if the list is too large to cache, or the term doesn't occur.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  public PostingsEnum get(IndexContext index, Term term, int flags)
+    throws IOException {
+    int segment = (index.getLeaf() == null) ? -1 : index.getLeaf().ord;
+    boolean positions = PostingsEnum.featureRequested(flags, PostingsEnum.POSITIONS);
+    Key key = new Key(term, segment, positions);
+    Key withPositions = new Key(term, segment, true);
+    int h = key.hashCode();
+    Stripe stripe = this.stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    Entry entry;
+
+    synchronized (stripe) {
+      entry = stripe.get(key);
+      if ((entry == null) && !positions) {
+        entry = stripe.get(withPositions);
+      }
+    }
+
+    if (entry != null) {
+      this.hits.increment();
+      return new Cursor(entry);
+    }
+
+    this.misses.increment();
+
+    //  Each posting needs at least two bytes and each position one, so
+    //  lists that can't fit aren't read here.
+
+    int df = index.getLocalDocFreq(term);
+    long ctf = (positions) ? index.getLocalTotalTermFreq(term) : 0;
+
+    if ((df < 1) || (2L * df + ctf + ENTRY_OVERHEAD > this.stripeBudget)) {
+      return null;
+    }
+
+    PostingsEnum postings = index.getLucenePostings(
+      term, (positions) ? PostingsEnum.POSITIONS : PostingsEnum.FREQS);
+
+    if (postings == null) {
+      return null;
+    }
+
+    entry = compress(postings, positions);
+
+    if (entry.bytes() <= this.stripeBudget) {
+      synchronized (stripe) {
+        Entry old = stripe.put(key, entry);
+        stripe.bytes += entry.bytes() - ((old == null) ? 0 : old.bytes());
+
+        Iterator<Entry> lru = stripe.values().iterator();
+        while ((stripe.bytes > this.stripeBudget) && lru.hasNext()) {
+          stripe.bytes -= lru.next().bytes();
+          lru.remove();
+        }
+      }
+    }
+
+    return new Cursor(entry);
+  }
+
+  /**
+   * Read a Lucene inverted list into a compressed entry.
+   */
+  private static Entry compress(PostingsEnum postings, boolean positions)
+    throws IOException {
+    GrowableByteArrayDataOutput out = new GrowableByteArrayDataOutput(1024);
+    int[] skipDocids = new int[8];
+    int[] skipOffsets = new int[8];
+    int skips = 0;
+    int df = 0;
+    int lastDocid = 0;
+
+    while (postings.nextDoc() != PostingsEnum.NO_MORE_DOCS) {
+      int docid = postings.docID();
+      int tf = postings.freq();
+      int lastPosition = 0;
+
+      if ((df > 0) && (df % SKIP_INTERVAL == 0)) {
+        if (skips == skipDocids.length) {
+          skipDocids = Arrays.copyOf(skipDocids, 2 * skips);
+          skipOffsets = Arrays.copyOf(skipOffsets, 2 * skips);
+        }
+        skipDocids[skips] = lastDocid;
+        skipOffsets[skips] = out.getPosition();
+        skips++;
+      }
+
+      out.writeVInt(docid - lastDocid);
+      out.writeVInt(tf);
+
+      if (positions) {
+        for (int j = 0; j < tf; j++) {
+          int position = postings.nextPosition();
+          out.writeVInt(position - lastPosition);
+          lastPosition = position;
+        }
+      }
+
+      lastDocid = docid;
+      df++;
+    }
+
+    return new Entry(Arrays.copyOf(out.getBytes(), out.getPosition()), df,
+                     positions, Arrays.copyOf(skipDocids, skips),
+                     Arrays.copyOf(skipOffsets, skips));
+  }
+
+  /**
+   * Returns the number of lookups that were satisfied from the cache.
+   *
+   * @return The number of cache hits.
+   */
+  public long getHits() {
+    return this.hits.sum();
+  }
+
+  /**
+   * Returns the number of lookups that required an index access.
+   *
+   * @return The number of cache misses.
+   */
+  public long getMisses() {
+    return this.misses.sum();
+  }
+
+  /**
+   * Returns the memory used by cached lists.
+   *
+   * @return The number of resident bytes.
+   */
+  public long getResidentBytes() {
+    long bytes = 0;
+    for (Stripe stripe : this.stripes) {
+      synchronized (stripe) {
+        bytes += stripe.bytes;
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Returns the cache's hit rate and size, for reporting.
+   *
+   * @return A string version of the cache statistics.
+   */
+  @Override
+  public String toString() {
+    long h = getHits();
+    long m = getMisses();
+    return String.format("hits: %d, misses: %d, hit rate: %.1f%%, resident: %d KB",
+                         h, m, (h + m == 0) ? 0.0 : 100.0 * h / (h + m),
+                         getResidentBytes() / 1024);
+  }
+
+  /**
+   * A PostingsEnum that decodes a cached list on demand.
+   */
+  private static class Cursor extends PostingsEnum {
+    private final Entry entry;
+    private final ByteArrayDataInput in;
+    private int docid = -1;
+    private int remainingDocs;
+    private int freq = 0;
+    private int remainingPositions = 0;
+    private int position = 0;
+
+    private Cursor(Entry entry) {
+      this.entry = entry;
+      this.in = new ByteArrayDataInput(entry.data);
+      this.remainingDocs = entry.df;
+    }
+
+    @Override
+    public int nextDoc() {
+      if (this.remainingDocs == 0) {
+        this.remainingPositions = 0;
+        return this.docid = NO_MORE_DOCS;
+      }
+
+      //  Skip the positions of the current document that weren't read.
+
+      while (this.remainingPositions > 0) {
+        this.in.readVInt();
+        this.remainingPositions--;
+      }
+
+      this.docid = Math.max(this.docid, 0) + this.in.readVInt();
+      this.freq = this.in.readVInt();
+      this.remainingPositions = (this.entry.positions) ? this.freq : 0;
+      this.position = 0;
+      this.remainingDocs--;
+      return this.docid;
+    }
+
+    @Override
+    public int advance(int target) {
+
+      //  Find the last skip point before target.  If it is ahead of the
+      //  cursor, jump to it:  the cursor is then on the last posting of
+      //  the block before the skip point.
+
+      int[] skipDocids = this.entry.skipDocids;
+      int s = Arrays.binarySearch(skipDocids, target);
+      s = ((s >= 0) ? s : -(s + 1)) - 1;
+
+      if ((s >= 0) && (skipDocids[s] > this.docid)) {
+        this.in.setPosition(this.entry.skipOffsets[s]);
+        this.docid = skipDocids[s];
+        this.remainingDocs = this.entry.df - (s + 1) * SKIP_INTERVAL;
+        this.remainingPositions = 0;
+      }
+
+      int d;
+      do {
+        d = nextDoc();
+      } while (d < target);
+      return d;
+    }
+
+    @Override
+    public int docID() {
+      return this.docid;
+    }
+
+    @Override
+    public int freq() {
+      return this.freq;
+    }
+
+    @Override
+    public int nextPosition() {
+      if (!this.entry.positions) {
+        return -1;
+      }
+      this.remainingPositions--;
+      this.position += this.in.readVInt();
+      return this.position;
+    }
+
+    @Override
+    public int startOffset() {
+      return -1;
+    }
+
+    @Override
+    public int endOffset() {
+      return -1;
+    }
+
+    @Override
+    public BytesRef getPayload() {
+      return null;
+    }
+
+    @Override
+    public long cost() {
+      return this.entry.df;
+    }
+  }
+}
@@ -100,6 +100,23 @@ public abstract class Qry {
   private boolean matchStored = false;	// Operators can cache matches
   private int matchingDocid;
 
+  /**
+   *  The index that the query operator is evaluated against.  It is
+   *  set when the query operator is initialized.
+   */
+  protected IndexContext indexContext = null;
+
+  /**
+   *  docIteratorHasMatchMin keeps the arguments that have matches in
+   *  a heap ordered by their current docids, so that finding the
+   *  minimum docid and advancing past it cost O(log args) rather than
+   *  a scan of every argument.  The heap is built by the first call,
+   *  and maintained by docIteratorAdvancePast and docIteratorAdvanceTo.
+   *  It is null until then.
+   */
+  private IntIndexHeap minHeap = null;
+  private RetrievalModel minHeapModel = null;
+
   //  --------------- Methods ---------------------------------------
 
   /**
@@ -187,12 +204,23 @@ public abstract class Qry {
    */
   public void docIteratorAdvancePast (int docid) {
 
+    if (this.minHeap != null) {
+
+      //  Only the arguments at or before docid move.
+
+      while ((this.minHeap.size () > 0) && (this.minHeap.topKey () <= docid)) {
+        int i = this.minHeap.pop ();
+        this.args.get (i).docIteratorAdvancePast (docid);
+        minHeapPush (i);
+      }
+    } else {
       for (Qry q_i: this.args) {
         q_i.docIteratorAdvancePast (docid);
       }
+    }
 
     this.docIteratorClearMatchCache ();
-    }
+  }
 
   /**
    *  Advance the internal document iterator to the specified
@@ -200,9 +228,20 @@ public abstract class Qry {
    *  @param docid An internal document id.
    */
   public void docIteratorAdvanceTo (int docid) {
-    
-    for (Qry q_i: this.args) {
-      q_i.docIteratorAdvanceTo (docid);
+
+    if (this.minHeap != null) {
+
+      //  Only the arguments before docid move.
+
+      while ((this.minHeap.size () > 0) && (this.minHeap.topKey () < docid)) {
+        int i = this.minHeap.pop ();
+        this.args.get (i).docIteratorAdvanceTo (docid);
+        minHeapPush (i);
+      }
+    } else {
+      for (Qry q_i: this.args) {
+        q_i.docIteratorAdvanceTo (docid);
+      }
     }
     
     this.docIteratorClearMatchCache ();
@@ -212,7 +251,7 @@ public abstract class Qry {
    *  Clear the docIterator's matching docid cache.  The cache should
    *  be cleared whenever a docIterator is advanced.
    */
-  private void docIteratorClearMatchCache () {
+  protected void docIteratorClearMatchCache () {
     this.docIteratorMatchCache = Qry.INVALID_DOCID;
   }
 
@@ -323,29 +362,45 @@ public abstract class Qry {
    */
   protected boolean docIteratorHasMatchMin (RetrievalModel r) {
 
-    int minDocid = Qry.INVALID_DOCID;
+    if (this.minHeap == null) {
+      this.minHeap = new IntIndexHeap (this.args.size ());
+      this.minHeapModel = r;
 
-    for (int i=0; i<this.args.size(); i++) {
-      Qry q_i = this.args.get(i);
-
-      if (q_i.docIteratorHasMatch (r)) {
-        int q_iDocid = q_i.docIteratorGetMatch ();
-
-        if ((minDocid > q_iDocid) ||
-            (minDocid == Qry.INVALID_DOCID)) {
-          minDocid = q_iDocid;
-        }
+      for (int i=0; i<this.args.size(); i++) {
+        minHeapPush (i);
       }
     }
 
-    if (minDocid != Qry.INVALID_DOCID) {
-      docIteratorSetMatchCache (minDocid);
+    if (this.minHeap.size () > 0) {
+      docIteratorSetMatchCache (this.minHeap.topKey ());
       return true;
     } else {
       return false;
     }
   }
 
+  /**
+   *  Add the i'th argument to the heap of docIteratorHasMatchMin, if
+   *  it has a match.
+   *  @param i The index of the argument.
+   */
+  private void minHeapPush (int i) {
+    Qry q_i = this.args.get (i);
+
+    if (q_i.docIteratorHasMatch (this.minHeapModel)) {
+      this.minHeap.push (i, q_i.docIteratorGetMatch ());
+    }
+  }
+
+  /**
+   *  Discard the heap of docIteratorHasMatchMin, e.g., because the
+   *  arguments were initialized again.
+   */
+  protected void docIteratorClearMinHeap () {
+    this.minHeap = null;
+    this.minHeapModel = null;
+  }
+
   /**
    *  Return the status of the cache.
    *  @return True if a match is cached, otherwise false.
@@ -381,14 +436,27 @@ public abstract class Qry {
     return this.displayName;
   }
 
+  /**
+   *  Initialize the query operator (and its arguments), including any
+   *  internal iterators; this method must be called before iteration
+   *  can begin.  The query is evaluated against the current index.
+   *  @param r A retrieval model that guides initialization
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void initialize(RetrievalModel r) throws IOException {
+    this.initialize (r, Idx.getIndexContext ());
+  }
+
   /**
    *  Initialize the query operator (and its arguments), including any
    *  internal iterators; this method must be called before iteration
    *  can begin.
    *  @param r A retrieval model that guides initialization
+   *  @param index The index that the query is evaluated against
    *  @throws IOException Error accessing the Lucene index.
    */
-  public abstract void initialize(RetrievalModel r) throws IOException;
+  public abstract void initialize(RetrievalModel r, IndexContext index)
+    throws IOException;
 
   /**
    *  Removes an argument from the list of query operator arguments.
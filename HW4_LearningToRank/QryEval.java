@@ -6,7 +6,6 @@
 import java.io.*;
 import java.util.*;
 
-import com.sun.scenario.effect.impl.sw.sse.SSEBlend_SRC_OUTPeer;
 import org.apache.lucene.analysis.Analyzer.TokenStreamComponents;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
@@ -37,6 +36,11 @@ public class QryEval {
             {"body", "title", "url", "inlink"};
     //private QryEval;
 
+    /**
+     * If set, queries are evaluated on each index segment in parallel.
+     */
+    private static SegmentEvaluator segmentEvaluator = null;
+
 
     //  --------------- Methods ---------------------------------------
 
@@ -66,9 +70,62 @@ public class QryEval {
 
         //  Open the index and initialize the retrieval model.
 
-        Idx.open(parameters.get("indexPath"));
+        long docLengthBudget = 0;
+        if (parameters.containsKey("docLengthStoreMemoryMB")) {
+            docLengthBudget = Long.parseLong(parameters.get("docLengthStoreMemoryMB")) * 1024L * 1024L;
+        }
+        IndexContext.Residency residency = IndexContext.Residency.DEFAULT;
+        if (parameters.containsKey("indexResidency")) {
+            residency = IndexContext.Residency.valueOf(parameters.get("indexResidency").toUpperCase());
+        }
+        Idx.open(parameters.get("indexPath"), docLengthBudget, residency);
+        if (parameters.containsKey("postingCacheMB")) {
+            Idx.getIndexContext().enablePostingCache(
+                    Long.parseLong(parameters.get("postingCacheMB")) * 1024L * 1024L);
+        }
+        if (parameters.containsKey("qryIopCacheMB")) {
+            Idx.getIndexContext().enableQryIopCache(
+                    Long.parseLong(parameters.get("qryIopCacheMB")) * 1024L * 1024L);
+        }
         RetrievalModel model = initializeRetrievalModel(parameters);
 
+        if (parameters.containsKey("dynamicPruning")) {
+            MaxScoreEvaluator.enabled = Boolean.parseBoolean(parameters.get("dynamicPruning"));
+        }
+        if (parameters.containsKey("queryPlan")) {
+            TaatEvaluator.plan = TaatEvaluator.Plan.valueOf(parameters.get("queryPlan").toUpperCase());
+        }
+        if (parameters.containsKey("blockMaxIndex") &&
+                Boolean.parseBoolean(parameters.get("blockMaxIndex"))) {
+            int blockSize = BlockMaxIndex.DEFAULT_BLOCK_SIZE;
+            if (parameters.containsKey("blockMaxBlockSize")) {
+                blockSize = Integer.parseInt(parameters.get("blockMaxBlockSize"));
+            }
+            Timer blockMaxTimer = new Timer();
+            blockMaxTimer.start();
+            Idx.getIndexContext().enableBlockMaxIndex(blockSize);
+            blockMaxTimer.stop();
+            System.out.println("Block-max index:  " + Idx.getIndexContext().getBlockMaxIndex() +
+                    ", opened in " + blockMaxTimer);
+        }
+
+        if (parameters.containsKey("segmentParallelism")) {
+            int parallelism = Integer.parseInt(parameters.get("segmentParallelism"));
+            if (parallelism > 0) {
+                segmentEvaluator = new SegmentEvaluator(parallelism);
+            }
+        }
+
+        //  Optionally warm the index before processing queries.
+
+        if (parameters.containsKey("warmupTopTerms")) {
+            IndexWarmer.warmTopTerms(Idx.getIndexContext(),
+                    Integer.parseInt(parameters.get("warmupTopTerms")));
+        }
+        if (parameters.containsKey("warmupQueryFile")) {
+            IndexWarmer.warmQueries(Idx.getIndexContext(), parameters.get("warmupQueryFile"), model);
+        }
+
         //  Perform experiments.
 
         if (model instanceof RetrievalModelLetor) {
@@ -79,6 +136,21 @@ public class QryEval {
         }
         //  Clean up.
 
+        if (segmentEvaluator != null) {
+            segmentEvaluator.shutdown();
+        }
+        System.out.println("Term statistics cache:  " + Idx.getIndexContext().getTermStatsCache());
+        if (Idx.getIndexContext().getPostingCache() != null) {
+            System.out.println("Posting cache:  " + Idx.getIndexContext().getPostingCache());
+        }
+        if (Idx.getIndexContext().getQryIopCache() != null) {
+            System.out.println("Proximity operator cache:  " + Idx.getIndexContext().getQryIopCache());
+        }
+        if ((model instanceof RetrievalModelBM25 || model instanceof RetrievalModelIndri) &&
+                MaxScoreEvaluator.enabled) {
+            System.out.println("Dynamic pruning:  " + MaxScoreEvaluator.getStatistics());
+        }
+        System.out.println("Query plans:  " + TaatEvaluator.getStatistics());
         timer.stop();
         System.out.println("Time:  " + timer);
     }
@@ -156,9 +228,49 @@ public class QryEval {
      */
     static ScoreList processQuery(String qString, RetrievalModel model)
             throws IOException {
+        return processQuery(qString, model, Idx.getIndexContext());
+    }
+
+    /**
+     * Process one query against a specific index.  Queries that use
+     * different IndexContexts (or the same one) may be processed
+     * concurrently.
+     *
+     * @param qString A string that contains a query.
+     * @param model   The retrieval model determines how matching and scoring is done.
+     * @param index   The index to search.
+     * @return Search results
+     * @throws IOException Error accessing the index
+     */
+    static ScoreList processQuery(String qString, RetrievalModel model, IndexContext index)
+            throws IOException {
+        return processQuery(qString, model, index, 0);
+    }
+
+    /**
+     * Process one query against a specific index, when only the top k
+     * results are needed.  Matches are collected in a bounded ScoreList,
+     * so at most k results are kept; use ScoreList.sort to rank them.
+     * If segment-parallel evaluation is enabled, the query is evaluated
+     * on each index segment in parallel.
+     *
+     * @param qString A string that contains a query.
+     * @param model   The retrieval model determines how matching and scoring is done.
+     * @param index   The index to search.
+     * @param k       The number of results needed, or 0 for all of them.
+     * @return Search results
+     * @throws IOException Error accessing the index
+     */
+    static ScoreList processQuery(String qString, RetrievalModel model, IndexContext index, int k)
+            throws IOException {
 
         String defaultOp = model.defaultQrySopName();
         qString = defaultOp + "(" + qString + ")";
+
+        if ((segmentEvaluator != null) && (index.getIndexReader().leaves().size() > 1)) {
+            return segmentEvaluator.evaluate(qString, model, index, k);
+        }
+
         Qry q = QryParser.getQuery(qString);
 
         // Show the query that is evaluated
@@ -167,17 +279,31 @@ public class QryEval {
 
         if (q != null) {
 
-            ScoreList r = new ScoreList();
+            ScoreList r = new ScoreList(index, k);
 
             if (q.args.size() > 0) {        // Ignore empty queries
 
-                q.initialize(model);
+                q.initialize(model, index);
+
+                //  Plan the query:  term-at-a-time, or document-at-a-time
+                //  with or without dynamic pruning.
+
+                boolean taat = TaatEvaluator.choose(q, model, r);
+                boolean pruned = (!taat) && MaxScoreEvaluator.canEvaluate(q, model, r);
 
-                while (q.docIteratorHasMatch(model)) {
-                    int docid = q.docIteratorGetMatch();
-                    double score = ((QrySop) q).getScore(model);
-                    r.add(docid, score);
-                    q.docIteratorAdvancePast(docid);
+                System.out.println("    Plan:  " + getPlanName(taat, pruned));
+
+                if (taat) {
+                    TaatEvaluator.evaluate(q, model, r);
+                } else if (pruned) {
+                    MaxScoreEvaluator.evaluate(q, model, r);
+                } else {
+                    while (q.docIteratorHasMatch(model)) {
+                        int docid = q.docIteratorGetMatch();
+                        double score = ((QrySop) q).getScore(model);
+                        r.add(docid, score);
+                        q.docIteratorAdvancePast(docid);
+                    }
                 }
             }
 
@@ -186,6 +312,17 @@ public class QryEval {
             return null;
     }
 
+    /**
+     * Get a printable name for a query plan.
+     *
+     * @param taat   True if the query is evaluated term at a time.
+     * @param pruned True if the query is evaluated with dynamic pruning.
+     * @return The name of the plan.
+     */
+    static String getPlanName(boolean taat, boolean pruned) {
+        return taat ? "TAAT" : (pruned ? "DAAT, dynamic pruning" : "DAAT");
+    }
+
     /**
      * Process the query file.
      *
@@ -207,8 +344,6 @@ public class QryEval {
 
             input = new BufferedReader(new FileReader(queryFilePath));
 
-            //  Each pass of the loop processes one query.
-
             //export file as result output file
             PrintWriter writer = new PrintWriter(exportFilePath, "UTF-8");
             writer.println("QueryID Q0 DocID Rank Score RunID");
@@ -220,112 +355,154 @@ public class QryEval {
                 writer1 = new PrintWriter(outputExpandedQuery, "UTF-8");
             }
 
-            while ((qLine = input.readLine()) != null) {
-                int d = qLine.indexOf(':');
+            int queryThreads = 1;
+            if (parameters.containsKey("queryThreads")) {
+                queryThreads = Integer.parseInt(parameters.get("queryThreads"));
+            }
 
-                if (d < 0) {
-                    throw new IllegalArgumentException
-                            ("Syntax error:  Missing ':' in query line.");
+            //  Process the queries one at a time, or in parallel.  Parallel
+            //  results are written in query order, so the output files are
+            //  the same.
+
+            if (queryThreads > 1) {
+                boolean virtual = parameters.containsKey("queryThreadType") &&
+                        parameters.get("queryThreadType").equalsIgnoreCase("virtual");
+                ParallelQueryProcessor processor = new ParallelQueryProcessor(queryThreads, virtual);
+                processor.processQueries(input, model, maxRankLength, parameters, writer, writer1);
+                System.out.print(processor.getStatistics());
+            } else {
+                //  Each pass of the loop processes one query.
+                while ((qLine = input.readLine()) != null) {
+                    processQueryLine(qLine, model, maxRankLength, parameters, writer, writer1);
                 }
+            }
+            writer.close();
+            if (parameters.containsKey("fbExpansionQueryFile")) {
+                writer1.close();
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Process one line of the query file, writing its results and, if
+     * query expansion is used, its expansion query.
+     *
+     * @param qLine         A query line, "qid:query".
+     * @param model         The retrieval model determines how matching and scoring is done.
+     * @param maxRankLength The number of results to write.
+     * @param parameters    The parameters.
+     * @param writer        The trec_eval output.
+     * @param writer1       The expansion query output, or null.
+     * @throws Exception Error accessing the Lucene index, or a malformed query.
+     */
+    static void processQueryLine(String qLine,
+                                 RetrievalModel model,
+                                 String maxRankLength,
+                                 Map<String, String> parameters,
+                                 PrintWriter writer,
+                                 PrintWriter writer1)
+            throws Exception {
 
-                printMemoryUsage(false);
+        int d = qLine.indexOf(':');
 
-                String qid = qLine.substring(0, d);
-                String query = qLine.substring(d + 1);
+        if (d < 0) {
+            throw new IllegalArgumentException
+                    ("Syntax error:  Missing ':' in query line.");
+        }
 
-                System.out.println("Query " + qLine);
+        printMemoryUsage(false);
 
-                ScoreList r = null;
+        String qid = qLine.substring(0, d);
+        String query = qLine.substring(d + 1);
 
-                //expand query when fb is specify
-                if (!parameters.containsKey("fb") || parameters.get("fb").equals("false")) {
-                    r = processQuery(query, model);
-                } else {
+        System.out.println("Query " + qLine);
 
-                    //get parameters needed from parameters map for query expansion
-                    int fbDocs = Integer.valueOf(parameters.get("fbDocs"));
-                    int fbTerms = Integer.valueOf(parameters.get("fbTerms"));
-                    int fbMu = Integer.valueOf(parameters.get("fbMu"));
-                    double fbOrigWeight = Double.valueOf(parameters.get("fbOrigWeight"));
-                    if (parameters.containsKey("fbExpansionQueryFile")) {
-                        String fbExpansionQueryFile = parameters.get("fbExpansionQueryFile");
-                    }
+        ScoreList r = null;
+        int k = Integer.valueOf(maxRankLength);
 
-                    //if the fbInitialRankingFile is being specified
-                    if (parameters.containsKey("fbInitialRankingFile")) {
-                        //read a document ranking in trec_eval input format from the fbInitialRankingFile;
-                        String fbInitialRankingFile = parameters.get("fbInitialRankingFile");
-                        BufferedReader br = null;
-                        FileReader fr = null;
-
-                        try {
-                            fr = new FileReader(fbInitialRankingFile);
-                            br = new BufferedReader(fr);
-                            String strCurrentLine;
-                            r = new ScoreList();
-                            while ((strCurrentLine = br.readLine()) != null) {
-                                String[] rankRow = strCurrentLine.split(" ");
-                                String qid_new = rankRow[0];
-                                String external_id = rankRow[2];
-                                double score_new = Double.parseDouble(rankRow[4]);
-                                //add existing scores into ScoreList based on ranked document
-                                if (qid_new.equals(qid)) {
-                                    r.add(Idx.getInternalDocid(external_id), score_new);
-                                }
-                            }
-
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        } finally {
-                            try {
-                                if (br != null) {
-                                    br.close();
-                                }
-                                if (fr != null) {
-                                    fr.close();
-                                }
-                            } catch (IOException ex) {
-                                ex.printStackTrace();
-                            }
+        //expand query when fb is specify
+        if (!parameters.containsKey("fb") || parameters.get("fb").equals("false")) {
+            r = processQuery(query, model, Idx.getIndexContext(), k);
+        } else {
 
-                        }
+            //get parameters needed from parameters map for query expansion
+            int fbDocs = Integer.valueOf(parameters.get("fbDocs"));
+            int fbTerms = Integer.valueOf(parameters.get("fbTerms"));
+            int fbMu = Integer.valueOf(parameters.get("fbMu"));
+            double fbOrigWeight = Double.valueOf(parameters.get("fbOrigWeight"));
+            if (parameters.containsKey("fbExpansionQueryFile")) {
+                String fbExpansionQueryFile = parameters.get("fbExpansionQueryFile");
+            }
 
-                    } else {
-                        //use the original query to retrieve documents
-                        r = processQuery(query, model);
+            //if the fbInitialRankingFile is being specified
+            if (parameters.containsKey("fbInitialRankingFile")) {
+                //read a document ranking in trec_eval input format from the fbInitialRankingFile;
+                String fbInitialRankingFile = parameters.get("fbInitialRankingFile");
+                BufferedReader br = null;
+                FileReader fr = null;
+
+                try {
+                    fr = new FileReader(fbInitialRankingFile);
+                    br = new BufferedReader(fr);
+                    String strCurrentLine;
+                    r = new ScoreList();
+                    while ((strCurrentLine = br.readLine()) != null) {
+                        String[] rankRow = strCurrentLine.split(" ");
+                        String qid_new = rankRow[0];
+                        String external_id = rankRow[2];
+                        double score_new = Double.parseDouble(rankRow[4]);
+                        //add existing scores into ScoreList based on ranked document
+                        if (qid_new.equals(qid)) {
+                            r.add(Idx.getInternalDocid(external_id), score_new);
+                        }
                     }
 
-                    //Now we have the ScoreList r, now we start to  expand the query
-                    //String newQuery = "#WAND(" + String.valueOf(fbOrigWeight) + " #AND(" + query + ") " + String.valueOf(1 - fbOrigWeight) + " ";
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    try {
+                        if (br != null) {
+                            br.close();
+                        }
+                        if (fr != null) {
+                            fr.close();
+                        }
+                    } catch (IOException ex) {
+                        ex.printStackTrace();
+                    }
 
-                    String learnedQuery = expandQuery(r, fbDocs, fbMu, fbTerms);
-                    System.out.println(learnedQuery);
-                    String expandedQuery = "#wand(" + fbOrigWeight + " " + "#and(" + query + ") " + (1 - fbOrigWeight) + " " + learnedQuery + ")";
-                    System.out.println(expandedQuery);
-                    r = processQuery(expandedQuery, model);
-                    writer1.println(qid + ": " + learnedQuery);
                 }
 
-                if (r != null) {
-                    printResults(qid, r, writer, Integer.valueOf(maxRankLength));
-                    System.out.println();
-                }
+            } else {
+                //use the original query to retrieve documents
+                r = processQuery(query, model, Idx.getIndexContext(), Math.max(k, fbDocs));
             }
-            writer.close();
-            if (parameters.containsKey("fbExpansionQueryFile")) {
-                writer1.close();
-            }
-        } catch (IOException ex) {
-            ex.printStackTrace();
-        } finally {
-            input.close();
+
+            //Now we have the ScoreList r, now we start to  expand the query
+            //String newQuery = "#WAND(" + String.valueOf(fbOrigWeight) + " #AND(" + query + ") " + String.valueOf(1 - fbOrigWeight) + " ";
+
+            String learnedQuery = expandQuery(r, fbDocs, fbMu, fbTerms);
+            System.out.println(learnedQuery);
+            String expandedQuery = "#wand(" + fbOrigWeight + " " + "#and(" + query + ") " + (1 - fbOrigWeight) + " " + learnedQuery + ")";
+            System.out.println(expandedQuery);
+            r = processQuery(expandedQuery, model, Idx.getIndexContext(), k);
+            writer1.println(qid + ": " + learnedQuery);
+        }
+
+        if (r != null) {
+            printResults(qid, r, writer, Integer.valueOf(maxRankLength));
+            System.out.println();
         }
     }
 
     static String expandQuery(ScoreList r, int fbDocs, int fbMu, int fbTerms) throws IOException {
 
         //sort ScoreList to get the top n documents
-        r.sort();
+        r.sort(fbDocs);
 
         //Get terms collection
         ArrayList<String> termCollection = new ArrayList<>();
@@ -424,7 +601,8 @@ public class QryEval {
      * @throws IOException Error accessing the Lucene index.
      */
     static void printResults(String queryName, ScoreList result, PrintWriter writer, int maxRankLength) throws IOException {
-        result.sort();
+        result.sort(maxRankLength);
+        result.resolveExternalIds(maxRankLength);
         System.out.println(queryName + ":  ");
         if (result.size() < 1) {
             //if there is no result output, record the dummy output
@@ -437,7 +615,7 @@ public class QryEval {
                 if (i < maxRankLength) {
                     //        System.out.println("\t" + i + ":  " + Idx.getExternalDocid(result.getDocid(i)) + ", "
 //            + result.getDocidScore(i));
-                    String exportContent = queryName + " Q0 " + Idx.getExternalDocid(result.getDocid(i)) + " " +
+                    String exportContent = queryName + " Q0 " + result.getExternalDocid(i) + " " +
                             (i + 1) + " " + result.getDocidScore(i) + " run-1";
                     System.out.println(exportContent);
                     writer.println(exportContent);
@@ -63,6 +63,22 @@ public abstract class QryIop extends Qry {
    */
   private int locIteratorIndex = QryIop.INVALID_ITERATOR_INDEX;
 
+  /**
+   *  Corpus-level df and ctf, if they differ from those of the
+   *  inverted list (e.g., when only one index segment is evaluated).
+   *  -1 means that the inverted list's statistics are used.
+   */
+  private int collectionDf = -1;
+  private int collectionCtf = -1;
+
+  /**
+   *  Whether the parent of this operator reads its locations.  If not,
+   *  the operator may build an inverted list without positions, which
+   *  is cheaper to read from the index.  The default is true; parents
+   *  that only read tf (e.g., SCORE) set it to false.
+   */
+  protected boolean needsPositions = true;
+
   /**
    *  Advance the query operator's internal iterator beyond the
    *  specified document.
@@ -70,11 +86,13 @@ public abstract class QryIop extends Qry {
    */
   public void docIteratorAdvancePast (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) <= docid)) {
-      this.docIteratorIndex ++;
+    if (docid == Integer.MAX_VALUE) {
+      this.docIteratorIndex = this.invertedList.df;
+    } else {
+      this.docIteratorIndex =
+        this.invertedList.advanceTo (this.docIteratorIndex, docid + 1);
     }
-           
+
     this.locIteratorIndex = 0;
   }
 
@@ -85,12 +103,35 @@ public abstract class QryIop extends Qry {
    */
   public void docIteratorAdvanceTo (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) < docid)) {
-      this.docIteratorIndex ++;
+    this.docIteratorIndex =
+      this.invertedList.advanceTo (this.docIteratorIndex, docid);
+
+    this.locIteratorIndex = 0;
+  }
+
+  /**
+   *  Copy the docids and term frequencies of the next matching
+   *  documents, and advance the query operator's internal iterator
+   *  past them.  Block scoring uses this to read a run of postings in
+   *  one call.
+   *  @param docids Returns the documents' internal document ids.
+   *  @param tfs Returns the documents' term frequencies.
+   *  @param max The maximum number of documents to copy.
+   *  @return The number of documents copied, or 0 if there are no
+   *    more matches.
+   */
+  public int docIteratorNextBlock (int[] docids, int[] tfs, int max) {
+
+    int n = Math.max (Math.min (max, this.invertedList.df - this.docIteratorIndex), 0);
+
+    for (int j = 0; j < n; j++) {
+      docids[j] = this.invertedList.getDocid (this.docIteratorIndex + j);
+      tfs[j] = this.invertedList.getTf (this.docIteratorIndex + j);
     }
-           
+
+    this.docIteratorIndex += n;
     this.locIteratorIndex = 0;
+    return n;
   }
 
   /**
@@ -98,7 +139,7 @@ public abstract class QryIop extends Qry {
    *  any possible document.
    */
   public void docIteratorFinish () {
-    this.docIteratorIndex = this.invertedList.postings.size();
+    this.docIteratorIndex = this.invertedList.df;
   }
 
   /**
@@ -113,12 +154,24 @@ public abstract class QryIop extends Qry {
   }
 
   /**
-   *  Return the postings for the document that the docIterator points to
-   *  now, or throw an error if the docIterator doesn't point at a document.
-   *  @return A document posting.
+   *  Return the j'th position in the document that the docIterator
+   *  points to now, or throw an error if the docIterator doesn't point
+   *  at a document.
+   *  @param j The index of the position, less than docIteratorGetMatchTf.
+   *  @return A location.
    */
-  public InvList.DocPosting docIteratorGetMatchPosting () {
-    return this.invertedList.postings.get(docIteratorIndex);
+  public int docIteratorGetMatchPosition (int j) {
+    return this.invertedList.getPosition (this.docIteratorIndex, j);
+  }
+
+  /**
+   *  Return the term frequency of the document that the docIterator
+   *  points to now, or throw an error if the docIterator doesn't point
+   *  at a document.
+   *  @return The term frequency.
+   */
+  public int docIteratorGetMatchTf () {
+    return this.invertedList.getTf (this.docIteratorIndex);
   }
 
   /**
@@ -137,7 +190,7 @@ public abstract class QryIop extends Qry {
    *  @return The collection term frequency (ctf).
    */
   public int getCtf () {
-    return this.invertedList.ctf;
+    return (this.collectionCtf >= 0) ? this.collectionCtf : getListCtf ();
   }
 
   /**
@@ -147,7 +200,98 @@ public abstract class QryIop extends Qry {
    *  @return The document frequency (df).
    */
   public int getDf () {
-    return this.invertedList.df;
+    return (this.collectionDf >= 0) ? this.collectionDf : getListDf ();
+  }
+
+  /**
+   *  Get the number of postings in this operator's inverted list.  It
+   *  is the same as getDf unless the collection statistics were set.
+   *  @return The number of postings.
+   */
+  public int getListDf () {
+    return (this.invertedList == null) ? 0 : this.invertedList.df;
+  }
+
+  /**
+   *  Get the collection term frequency of this operator's inverted list.
+   *  It is the same as getCtf unless the collection statistics were set.
+   *  @return The collection term frequency of the inverted list.
+   */
+  public int getListCtf () {
+    return (this.invertedList == null) ? 0 : this.invertedList.ctf;
+  }
+
+  /**
+   *  Get the largest term frequency in this operator's inverted list,
+   *  or an upper bound on it.  Score upper bounds are computed from it.
+   *  @return The maximum term frequency of the inverted list.
+   */
+  public int getListMaxTf () {
+    return (this.invertedList == null) ? 0 : this.invertedList.getMaxTf ();
+  }
+
+  /**
+   *  Set the corpus-level statistics that getDf and getCtf report.
+   *  This is used when the inverted list covers only part of the
+   *  index, e.g., one segment.
+   *  @param df The document frequency in the whole index.
+   *  @param ctf The collection term frequency in the whole index.
+   */
+  public void setCollectionStatistics (int df, int ctf) {
+    this.collectionDf = df;
+    this.collectionCtf = ctf;
+  }
+
+  /**
+   *  Whether this operator reads the locations of its arguments.
+   *  Operators that combine argument positions (e.g., NEAR, WINDOW)
+   *  always do; subclasses may override this.
+   *  @return True if the arguments must have positions.
+   */
+  protected boolean argsNeedPositions () {
+    return true;
+  }
+
+  /**
+   *  Get a canonical signature of the query operator and its
+   *  arguments, e.g., #SYN(apple.body pear.body).  Identical subtrees
+   *  have identical signatures, regardless of how the query was
+   *  written.  Operators that have parameters (e.g., a distance) must
+   *  override this method.
+   *  @return The signature.
+   */
+  public String getSignature () {
+    StringBuilder s = new StringBuilder ();
+
+    s.append ('#').append (this.getClass ().getSimpleName ().substring (6).toUpperCase ());
+    appendArgSignatures (s);
+    return s.toString ();
+  }
+
+  /**
+   *  Append the signatures of the arguments, in order and in
+   *  parentheses, to a signature.
+   *  @param s The signature.
+   */
+  protected void appendArgSignatures (StringBuilder s) {
+    s.append ('(');
+
+    for (int i = 0; i < this.args.size (); i++) {
+      if (i > 0)
+        s.append (' ');
+      s.append (((QryIop) this.args.get (i)).getSignature ());
+    }
+
+    s.append (')');
+  }
+
+  /**
+   *  Set whether the parent of this operator reads its locations.
+   *  This must be called before the operator is initialized.
+   *  @param needsPositions False if only docids and tfs are read.
+   */
+  public void setNeedsPositions (boolean needsPositions) {
+    this.needsPositions = needsPositions;
   }
 
   /**
@@ -170,19 +314,46 @@ public abstract class QryIop extends Qry {
    *  internal iterators; this method must be called before iteration
    *  can begin.
    *  @param r A retrieval model (that is ignored)
+   *  @param index The index that the query is evaluated against
    */
-  public void initialize(RetrievalModel r) throws IOException {
+  public void initialize(RetrievalModel r, IndexContext index)
+    throws IOException {
+
+    this.indexContext = index;
+
+    //  Operators that combine argument lists may have been evaluated
+    //  by an earlier query.  If so, the arguments aren't needed, and
+    //  they are left inert:  they aren't initialized, so their
+    //  iterators aren't open and their df and ctf are 0.
+
+    QryIopCache cache = index.getQryIopCache ();
+
+    if ((cache != null) && (this.args.size () > 0)) {
+      InvList cached = cache.get (this, index, this.needsPositions);
+
+      if (cached != null) {
+        this.invertedList = cached;
+        this.docIteratorIndex = 0;
+        this.locIteratorIndex = 0;
+        return;
+      }
+    }
 
     //  Initialize the query arguments (if any).
 
     for (Qry q_i: this.args) {
-      ((QryIop) q_i).initialize (r);
+      ((QryIop) q_i).setNeedsPositions (this.argsNeedPositions ());
+      ((QryIop) q_i).initialize (r, index);
     }
 
     //  Evaluate the operator.
     
     this.evaluate ();
 
+    if ((cache != null) && (this.args.size () > 0)) {
+      cache.put (this, index, this.needsPositions, this.invertedList);
+    }
+
     //  Initialize the internal iterators.
 
     this.docIteratorIndex = 0;
@@ -203,11 +374,11 @@ public abstract class QryIop extends Qry {
    *  @param loc The location to advance beyond.
    */
   public void locIteratorAdvancePast (int loc) {
-    int tf = this.invertedList.postings.get(this.docIteratorIndex).tf;
-    Vector<Integer> positions = this.invertedList.postings.get(this.docIteratorIndex).positions;
+    int tf = this.invertedList.getTf (this.docIteratorIndex);
 
     while ((this.locIteratorIndex < tf) &&
-           (positions.get (this.locIteratorIndex) <= loc)) {
+           (this.invertedList.getPosition (this.docIteratorIndex,
+                                           this.locIteratorIndex) <= loc)) {
       locIteratorIndex ++;
     }
   }
@@ -218,7 +389,7 @@ public abstract class QryIop extends Qry {
    */
   public void locIteratorFinish () {
     this.locIteratorIndex =
-      this.invertedList.postings.get(this.docIteratorIndex).tf;
+      this.invertedList.getTf (this.docIteratorIndex);
   }
 
   /**
@@ -229,8 +400,8 @@ public abstract class QryIop extends Qry {
    *  @return The internal id of the current document.
    */
   public int locIteratorGetMatch () {
-    Vector<Integer> locations = this.docIteratorGetMatchPosting().positions;
-    return locations.get (this.locIteratorIndex);
+    return this.invertedList.getPosition (this.docIteratorIndex,
+                                          this.locIteratorIndex);
   }
 
   /**
@@ -0,0 +1,120 @@
+/*
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * QryIopCache is a size-bounded cache of the inverted lists that
+ * positional and synonym operators (#NEAR, #WINDOW, #SYN) compute.
+ * Expanded queries and reruns re-evaluate identical subtrees, such as
+ * #NEAR/1(new york), and building their inverted lists requires
+ * reading and merging all of the argument lists.
+ * <p>
+ * Lists are keyed by the canonical signature of the subtree
+ * (QryIop.getSignature: operator, distance, field, and ordered
+ * arguments), the index segment, and whether positions were built.
+ * Cached lists are never modified, so they are shared by queries and
+ * threads; each query operator keeps its own iterators.  The cache
+ * belongs to an IndexContext, so it is discarded with the index that
+ * it describes, and an index that changes gets a new, empty cache
+ * when it is reopened.  Least recently used lists are evicted when
+ * the cache exceeds its byte budget.
+ * </p>
+ */
+public class QryIopCache {
+
+  private final long budget;
+  private long bytes = 0;
+  private final LinkedHashMap<String, InvList> lists =
+    new LinkedHashMap<String, InvList>(16, 0.75f, true);
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /**
+   * @param budget The maximum number of bytes of cached lists.
+   */
+  public QryIopCache(long budget) {
+    this.budget = budget;
+  }
+
+  /**
+   * Returns the cache key of a query operator's inverted list.
+   */
+  private static String key(QryIop q, IndexContext index, boolean withPositions) {
+    int segment = (index.getLeaf() == null) ? -1 : index.getLeaf().ord;
+    return q.getSignature() + "|" + segment + "|" + (withPositions ? "P" : "F");
+  }
+
+  /**
+   * Returns the cached inverted list of a query operator.
+   *
+   * @param q The query operator.
+   * @param index The index, or a leaf view of one segment.
+   * @param withPositions Whether the list must have positions.
+   * @return The inverted list, or null if it isn't cached.
+   */
+  public synchronized InvList get(QryIop q, IndexContext index, boolean withPositions) {
+    InvList list = this.lists.get(key(q, index, withPositions));
+
+    if (list != null) {
+      this.hits.increment();
+    } else {
+      this.misses.increment();
+    }
+
+    return list;
+  }
+
+  /**
+   * Caches the inverted list of a query operator.  The list must not
+   * be modified afterwards.  Lists larger than the budget aren't cached.
+   *
+   * @param q The query operator.
+   * @param index The index, or a leaf view of one segment.
+   * @param withPositions Whether the list has positions.
+   * @param list The inverted list.
+   */
+  public synchronized void put(QryIop q, IndexContext index, boolean withPositions,
+                               InvList list) {
+    long size = list.getBytesUsed();
+
+    if (size > this.budget) {
+      return;
+    }
+
+    InvList old = this.lists.put(key(q, index, withPositions), list);
+    this.bytes += size - ((old == null) ? 0 : old.getBytesUsed());
+
+    Iterator<InvList> lru = this.lists.values().iterator();
+    while ((this.bytes > this.budget) && lru.hasNext()) {
+      this.bytes -= lru.next().getBytesUsed();
+      lru.remove();
+    }
+  }
+
+  /**
+   * Returns the memory used by cached lists.
+   *
+   * @return The number of resident bytes.
+   */
+  public synchronized long getResidentBytes() {
+    return this.bytes;
+  }
+
+  /**
+   * Returns the cache's hit rate and size, for reporting.
+   *
+   * @return A string version of the cache statistics.
+   */
+  @Override
+  public String toString() {
+    long h = this.hits.sum();
+    long m = this.misses.sum();
+    return String.format("hits: %d, misses: %d, hit rate: %.1f%%, resident: %d KB",
+                         h, m, (h + m == 0) ? 0.0 : 100.0 * h / (h + m),
+                         getResidentBytes() / 1024);
+  }
+}
@@ -2,16 +2,10 @@
  * Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
  */
 
-import java.io.*;
-import java.util.*;
-
 /**
  * The NEAR operator for all retrieval models.
  */
-public class QryIopNear extends QryIop {
-
-
-    private int maxDiff;
+public class QryIopNear extends QryIopProximity {
 
     public QryIopNear() {
     }
@@ -21,96 +15,67 @@ public class QryIopNear extends QryIop {
     }
 
     /**
-     * Evaluate the query operator; the result is an internal inverted
-     * list that may be accessed via the internal iterators.
+     * Find the locations where each argument occurs in order, within
+     * maxDiff positions of the previous argument.  The location of a
+     * match is the location of the last argument.
      *
-     * @throws IOException Error accessing the Lucene index.
+     * @param s The arguments' positions; write matches to s.out.
+     * @param n The number of arguments.
+     * @return The number of matching locations in s.out.
      */
-    protected void evaluate() throws IOException {
+    protected int join(Scratch s, int n) {
 
-        //  Create an empty inverted list.  If there are no query arguments,
-        //  that's the final result.
+        int[][] pos = s.pos;
+        int[] tf = s.tf;
+        int[] ptr = s.ptr;
+        int count = 0;
 
-        this.invertedList = new InvList(this.getField());
-
-        if (args.size() == 0) {
-            return;
+        for (int i = 0; i < n; i++) {
+            ptr[i] = 0;
         }
 
-        //make sure inverted lists have common doc id
-        while (this.docIteratorHasMatchAll(null)) {
-
-            //boolean check if we should add this result to position list
-            boolean shouldAdd;
-            //boolean check if we should move document to next id
-            boolean move = false;
+        //Iterate through locations of the first argument
+        while (ptr[0] < tf[0]) {
 
-            //  Each pass of the loop adds 1 document to result inverted list
-            //  until all of the argument inverted lists are depleted.
-            List<Integer> positions = new ArrayList<>();
-            //get the current minimum document id
-            int minDocId = this.args.get(0).docIteratorGetMatch();
+            //the very first match location on left inverted list
+            int loc_0 = pos[0][ptr[0]];
+            boolean shouldAdd = true;
 
-            //Iterate through locations for this document
-            while (true) {
+            //loop through each argument, make sure they are NEAR by pair
+            for (int i = 1; i < n; i++) {
 
-                //if no location has match
-                if (!((QryIop) this.args.get(0)).locIteratorHasMatch()) {
-                    break;
+                //move the pointer past the location of the previous argument
+                int[] pos_i = pos[i];
+                int k = ptr[i];
+                while ((k < tf[i]) && (pos_i[k] <= loc_0)) {
+                    k++;
                 }
-                //the very first match location on left inverted lost
-                int loc_0 = ((QryIop) this.args.get(0)).locIteratorGetMatch();
-                int loc_1, loc_diff;
-                shouldAdd = true;
+                ptr[i] = k;
 
-                //loop through each query, make sure they are NEAR by pair
-                for (int i = 1; i < this.args.size(); i++) {
-
-                    //get the pointer point to the location that match the leftmost location (at least past it)
-                    QryIop q_i = (QryIop) this.args.get(i);
-                    q_i.locIteratorAdvancePast(loc_0);
-                    if (!q_i.locIteratorHasMatch()) {
-                        shouldAdd = false;
-                        move = true;
-                        break;
-                    }
-                    loc_1 = q_i.locIteratorGetMatch();
-                    loc_diff = loc_1 - loc_0;
-
-                    //check if the location differences is larger than max difference
-                    //if so, move the left location pointer to next location
-                    if (loc_diff <= maxDiff) {
-                        loc_0 = loc_1;
-                    } else {
-                        ((QryIop) this.args.get(0)).locIteratorAdvance();
-                        shouldAdd = false;
-                        break;
-                    }
+                //if an argument is exhausted, there are no more matches
+                if (k >= tf[i]) {
+                    return count;
                 }
 
-                //if the boolean shouldAdd is true, which indicates it pass all break condition
-                //then put loc_0 into the position list
-                //advance all iterator to the next location
-                if (shouldAdd) {
-                    positions.add(loc_0);
-                    for (Qry arg : this.args) {
-                        ((QryIop) arg).locIteratorAdvance();
-                    }
+                //if the distance is too large, move the first argument
+                if (pos_i[k] - loc_0 <= maxDiff) {
+                    loc_0 = pos_i[k];
                 } else {
-                    if (move) {
-                        break;
-                    }
+                    ptr[0]++;
+                    shouldAdd = false;
+                    break;
                 }
             }
 
-            //if position list for this document is not empty
-            if (positions.size() > 0) {
-                Collections.sort(positions);
-                this.invertedList.appendPosting(minDocId, positions);
+            //record the match, and advance all arguments
+            if (shouldAdd) {
+                s.out[count++] = loc_0;
+                for (int i = 0; i < n; i++) {
+                    ptr[i]++;
+                }
             }
-
-            //continue to next document id
-            this.args.get(0).docIteratorAdvancePast(minDocId);
         }
+
+        return count;
     }
 }
@@ -0,0 +1,137 @@
+/**
+ * Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.IOException;
+
+/**
+ * The base class of positional operators (NEAR, WINDOW) that match
+ * documents that contain all of their arguments, and locations where
+ * the arguments occur close together.
+ * <p>
+ * For each document that all arguments match, the arguments'
+ * positions are copied into per-thread scratch arrays, and the
+ * subclass's join kernel finds the matching locations using only
+ * primitive arrays.  Matches are produced in ascending order, so they
+ * are appended to the inverted list without sorting.
+ * </p>
+ */
+public abstract class QryIopProximity extends QryIop {
+
+    /**
+     * Reusable buffers for the join kernels.  pos[i] holds the first
+     * tf[i] positions of argument i; ptr[i] is the kernel's index into
+     * them.  heap is workspace for kernels that need one, and out
+     * receives the matching locations.
+     */
+    protected static class Scratch {
+        int[][] pos = new int[0][];
+        int[] tf = new int[0];
+        int[] ptr = new int[0];
+        int[] heap = new int[0];
+        int[] out = new int[16];
+
+        private void ensureArgs(int n) {
+            if (this.pos.length < n) {
+                int[][] p = new int[n][];
+                System.arraycopy(this.pos, 0, p, 0, this.pos.length);
+                for (int i = this.pos.length; i < n; i++) {
+                    p[i] = new int[16];
+                }
+                this.pos = p;
+                this.tf = new int[n];
+                this.ptr = new int[n];
+                this.heap = new int[n];
+            }
+        }
+    }
+
+    private static final ThreadLocal<Scratch> SCRATCH =
+            ThreadLocal.withInitial(Scratch::new);
+
+    /**
+     * The maximum distance between matching argument locations.
+     */
+    protected int maxDiff;
+
+    /**
+     * Find the matching locations in one document.
+     *
+     * @param s The arguments' positions; write matches to s.out.
+     * @param n The number of arguments.
+     * @return The number of matching locations in s.out.
+     */
+    protected abstract int join(Scratch s, int n);
+
+    /**
+     * Evaluate the query operator; the result is an internal inverted
+     * list that may be accessed via the internal iterators.
+     *
+     * @throws IOException Error accessing the Lucene index.
+     */
+    protected void evaluate() throws IOException {
+
+        //  Create an empty inverted list.  If there are no query arguments,
+        //  that's the final result.
+
+        this.invertedList = new InvList(this.getField());
+
+        if (args.size() == 0) {
+            return;
+        }
+
+        int n = this.args.size();
+        Scratch s = SCRATCH.get();
+        s.ensureArgs(n);
+
+        //make sure inverted lists have common doc id
+        while (this.docIteratorHasMatchAll(null)) {
+
+            int docid = this.args.get(0).docIteratorGetMatch();
+            int minTf = Integer.MAX_VALUE;
+
+            //copy each argument's positions in this document
+            for (int i = 0; i < n; i++) {
+                QryIop q_i = (QryIop) this.args.get(i);
+                int tf = q_i.docIteratorGetMatchTf();
+
+                if (s.pos[i].length < tf) {
+                    s.pos[i] = new int[Math.max(tf, 2 * s.pos[i].length)];
+                }
+                for (int j = 0; j < tf; j++) {
+                    s.pos[i][j] = q_i.docIteratorGetMatchPosition(j);
+                }
+                s.tf[i] = tf;
+                minTf = Math.min(minTf, tf);
+            }
+
+            //each match consumes a location of every argument
+            if (s.out.length < minTf) {
+                s.out = new int[Math.max(minTf, 2 * s.out.length)];
+            }
+
+            int count = join(s, n);
+
+            if (count > 0) {
+                this.invertedList.appendPosting(
+                        docid, (this.needsPositions) ? s.out : null, count);
+            }
+
+            //continue to next document id
+            this.args.get(0).docIteratorAdvancePast(docid);
+        }
+    }
+
+    /**
+     * Get a canonical signature of the query operator and its arguments.
+     *
+     * @return The signature.
+     */
+    public String getSignature() {
+        StringBuilder s = new StringBuilder("#")
+                .append(this.getClass().getSimpleName().substring(6).toUpperCase())
+                .append('/').append(this.maxDiff);
+        appendArgSignatures(s);
+        return s.toString();
+    }
+}
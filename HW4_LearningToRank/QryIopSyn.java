@@ -6,9 +6,41 @@ import java.util.*;
 
 /**
  *  The SYN operator for all retrieval models.
+ *  <p>
+ *  The argument inverted lists are merged with a heap ordered by the
+ *  arguments' current docids, and the positions of the arguments that
+ *  match a document are merged with a heap ordered by location.  A
+ *  location that occurs in two or more arguments (e.g., #SYN (apple
+ *  apple)) is counted once.
+ *  </p>
  */
 public class QryIopSyn extends QryIop {
 
+  /**
+   *  SYN needs the positions of its arguments if its own positions
+   *  are needed, or to find locations that occur in several
+   *  arguments.  Distinct terms can't share a location, so if the
+   *  arguments are distinct terms, their tfs can be summed instead.
+   *  @return True if the arguments must have positions.
+   */
+  protected boolean argsNeedPositions () {
+
+    if (this.needsPositions) {
+      return true;
+    }
+
+    Set<String> terms = new HashSet<String> ();
+
+    for (Qry q_i: this.args) {
+      if (! ((q_i instanceof QryIopTerm) &&
+             terms.add (((QryIopTerm) q_i).getSignature ()))) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
    *  list that may be accessed via the internal iterators.
@@ -18,55 +50,98 @@ public class QryIopSyn extends QryIop {
 
     //  Create an empty inverted list.  If there are no query arguments,
     //  that's the final result.
-    
+
     this.invertedList = new InvList (this.getField());
 
     if (args.size () == 0) {
       return;
     }
 
+    int n = this.args.size ();
+    boolean argsHavePositions = this.argsNeedPositions ();
+
+    //  docHeap orders the arguments by their current docids.  locHeap
+    //  orders the arguments that match one document by their current
+    //  locations; locPtr is each argument's index into its locations.
+
+    IntIndexHeap docHeap = new IntIndexHeap (n);
+    IntIndexHeap locHeap = new IntIndexHeap (n);
+    int[] matched = new int[n];
+    int[] locPtr = new int[n];
+    int[] positions = new int[16];
+
+    for (int i = 0; i < n; i++) {
+      if (this.args.get (i).docIteratorHasMatch (null)) {
+        docHeap.push (i, this.args.get (i).docIteratorGetMatch ());
+      }
+    }
+
     //  Each pass of the loop adds 1 document to result inverted list
     //  until all of the argument inverted lists are depleted.
 
-    while (true) {
+    while (docHeap.size () > 0) {
 
-      //  Find the minimum next document id.  If there is none, we're done.
+      //  Find the arguments that match the minimum next document id.
 
-      int minDocId = Qry.INVALID_DOCID;
+      int minDocId = docHeap.topKey ();
+      int numMatched = 0;
+      int maxTf = 0;
 
-      for (Qry q_i: this.args) {
-        if (q_i.docIteratorHasMatch (null)) {
-          int q_iDocid = q_i.docIteratorGetMatch ();
-          
-          if ((minDocId > q_iDocid) ||
-              (minDocId == Qry.INVALID_DOCID)) {
-            minDocId = q_iDocid;
-          }
-        }
+      while ((docHeap.size () > 0) && (docHeap.topKey () == minDocId)) {
+        int i = docHeap.pop ();
+        matched[numMatched ++] = i;
+        maxTf += ((QryIop) this.args.get (i)).docIteratorGetMatchTf ();
       }
 
-      if (minDocId == Qry.INVALID_DOCID)
-        break;				// All docids have been processed.  Done.
-      
-      //  Create a new posting that is the union of the posting lists
-      //  that match the minDocId.  Save it.
-      //  Note:  This implementation assumes that a location will not appear
-      //  in two or more arguments.  #SYN (apple apple) would break it.
-
-      List<Integer> positions = new ArrayList<Integer>();
-
-      for (Qry q_i: this.args) {
-        if (q_i.docIteratorHasMatch (null) &&
-            (q_i.docIteratorGetMatch () == minDocId)) {
-          Vector<Integer> locations_i =
-            ((QryIop) q_i).docIteratorGetMatchPosting().positions;
-	  positions.addAll (locations_i);
-          q_i.docIteratorAdvancePast (minDocId);
-	}
+      //  Create a new posting that is the union of the postings that
+      //  match the minDocId.
+
+      int tf = 0;
+
+      if (! argsHavePositions) {
+        tf = maxTf;
+      } else {
+        if (maxTf > positions.length)
+          positions = new int[Math.max (maxTf, 2 * positions.length)];
+
+        locHeap.clear ();
+
+        for (int m = 0; m < numMatched; m++) {
+          int i = matched[m];
+          locPtr[i] = 0;
+          locHeap.push (i, ((QryIop) this.args.get (i)).docIteratorGetMatchPosition (0));
+        }
+
+        while (locHeap.size () > 0) {
+          int i = locHeap.top ();
+          int loc = locHeap.topKey ();
+          QryIop q_i = (QryIop) this.args.get (i);
+
+          if ((tf == 0) || (positions[tf - 1] != loc))
+            positions[tf ++] = loc;
+
+          if (++ locPtr[i] < q_i.docIteratorGetMatchTf ())
+            locHeap.updateTop (q_i.docIteratorGetMatchPosition (locPtr[i]));
+          else
+            locHeap.pop ();
+        }
       }
 
-      Collections.sort (positions);
-      this.invertedList.appendPosting (minDocId, positions);
+      if (this.needsPositions)
+        this.invertedList.appendPosting (minDocId, positions, tf);
+      else
+        this.invertedList.appendPosting (minDocId, null, tf);
+
+      //  Advance the matching arguments.
+
+      for (int m = 0; m < numMatched; m++) {
+        Qry q_i = this.args.get (matched[m]);
+        q_i.docIteratorAdvancePast (minDocId);
+
+        if (q_i.docIteratorHasMatch (null)) {
+          docHeap.push (matched[m], q_i.docIteratorGetMatch ());
+        }
+      }
     }
   }
 
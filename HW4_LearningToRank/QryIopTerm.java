@@ -4,18 +4,44 @@
 import java.io.*;
 import java.util.*;
 
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
 /**
  *  The TERM operator for all retrieval models.  The TERM operator stores
  *  information about a query term, for example "apple" in the query
  *  "#AND (apple pie).  Although it may seem odd to use a query
  *  operator to store a term, doing so makes it easy to build
  *  structured queries with nested query operators.
- *
+ *  <p>
+ *  The TERM operator <i>streams</i> its inverted list: the
+ *  docIterator wraps a Lucene PostingsEnum, docIteratorAdvanceTo
+ *  maps to PostingsEnum.advance, and the positions of a document are
+ *  decoded only if they are accessed.  df and ctf are corpus
+ *  statistics from the index.
+ *  </p>
  */
 public class QryIopTerm extends QryIop {
 
   private String term;
 
+  /**
+   *  Streaming state.  postings is null if the term doesn't occur.
+   *  docBase rebases segment docids to index docids.
+   */
+  private PostingsEnum postings = null;
+  private int docBase = 0;
+  private int listDf = 0;
+  private int listCtf = 0;
+
+  /**
+   *  The positions of the current document, decoded on demand.
+   */
+  private int[] positions = new int[8];
+  private int positionsDocid = Qry.INVALID_DOCID;
+  private int locIndex = 0;
+
   /**
    *  The term is assumed to match the body field.
    *  @param termString A term string.
@@ -41,7 +67,207 @@ public class QryIopTerm extends QryIop {
    *  @throws IOException Error accessing the Lucene index.
    */
   protected void evaluate () throws IOException {
-    this.invertedList = new InvList(this.term, this.field);
+
+    Term t = new Term (this.field, new BytesRef (this.term));
+
+    this.postings = null;
+    this.positionsDocid = Qry.INVALID_DOCID;
+    this.locIndex = 0;
+
+    if (this.indexContext.getDocFreq (t) < 1)
+      return;
+
+    this.postings = this.indexContext.getPostings (
+      t, (this.needsPositions) ? PostingsEnum.POSITIONS : PostingsEnum.FREQS);
+
+    if (this.postings == null)
+      return;
+
+    this.docBase = this.indexContext.getDocBase ();
+    this.listDf = this.indexContext.getLocalDocFreq (t);
+    this.listCtf = (int) this.indexContext.getLocalTotalTermFreq (t);
+    this.postings.nextDoc ();
+  }
+
+  /**
+   *  Decode the positions of the current document, if they haven't
+   *  been decoded already.
+   */
+  private void decodePositions () {
+
+    int docid = this.postings.docID ();
+
+    if (this.positionsDocid == docid)
+      return;
+
+    try {
+      int tf = this.postings.freq ();
+
+      if (tf > this.positions.length)
+        this.positions = new int[Math.max (tf, 2 * this.positions.length)];
+
+      for (int j = 0; j < tf; j++)
+        this.positions[j] = this.postings.nextPosition ();
+    } catch (IOException ex) {
+      throw new UncheckedIOException (ex);
+    }
+
+    this.positionsDocid = docid;
+  }
+
+  /**
+   *  Advance the postings to the first document that is at least
+   *  target (a segment docid), and reset the locIterator.
+   */
+  private void advance (int target) {
+
+    try {
+      if (this.postings.docID () < target)
+        this.postings.advance (target);
+    } catch (IOException ex) {
+      throw new UncheckedIOException (ex);
+    }
+
+    this.locIndex = 0;
+  }
+
+  //  The docIterator and locIterator methods below read the Lucene
+  //  postings instead of an InvList.
+
+  public void docIteratorAdvancePast (int docid) {
+    if (this.postings != null) {
+
+      //  No document follows Integer.MAX_VALUE, and docid + 1 would
+      //  overflow.
+
+      if (docid == Integer.MAX_VALUE) {
+        advance (DocIdSetIterator.NO_MORE_DOCS);
+      } else {
+        advance (docid - this.docBase + 1);
+      }
+    }
+  }
+
+  public void docIteratorAdvanceTo (int docid) {
+    if (this.postings != null) {
+      advance (docid - this.docBase);
+    }
+  }
+
+  public int docIteratorNextBlock (int[] docids, int[] tfs, int max) {
+    if (this.postings == null)
+      return 0;
+
+    int n = 0;
+
+    try {
+      for (int docid = this.postings.docID ();
+           (n < max) && (docid != DocIdSetIterator.NO_MORE_DOCS);
+           docid = this.postings.nextDoc ()) {
+        docids[n] = this.docBase + docid;
+        tfs[n] = this.postings.freq ();
+        n++;
+      }
+    } catch (IOException ex) {
+      throw new UncheckedIOException (ex);
+    }
+
+    this.locIndex = 0;
+    return n;
+  }
+
+  public void docIteratorFinish () {
+    if (this.postings != null) {
+      advance (DocIdSetIterator.NO_MORE_DOCS);
+    }
+  }
+
+  public int docIteratorGetMatch () {
+    int docid = this.postings.docID ();
+
+    //  An exhausted list isn't rebased, so that docBase + NO_MORE_DOCS
+    //  doesn't overflow.
+
+    if (docid == DocIdSetIterator.NO_MORE_DOCS)
+      return docid;
+
+    return this.docBase + docid;
+  }
+
+  public int docIteratorGetMatchPosition (int j) {
+    decodePositions ();
+    return this.positions[j];
+  }
+
+  public int docIteratorGetMatchTf () {
+    try {
+      return this.postings.freq ();
+    } catch (IOException ex) {
+      throw new UncheckedIOException (ex);
+    }
+  }
+
+  public boolean docIteratorHasMatch (RetrievalModel r) {
+    return ((this.postings != null) &&
+            (this.postings.docID () != DocIdSetIterator.NO_MORE_DOCS));
+  }
+
+  public int getListCtf () {
+    return this.listCtf;
+  }
+
+  public int getListDf () {
+    return this.listDf;
+  }
+
+  /**
+   *  The list isn't read in advance, so its maximum tf is
+   *  bounded by its statistics:  every other posting has tf >= 1.
+   *  @return An upper bound on the maximum term frequency.
+   */
+  public int getListMaxTf () {
+    return (this.listDf > 0) ? this.listCtf - this.listDf + 1 : 0;
+  }
+
+  public void locIteratorAdvance () {
+    this.locIndex ++;
+  }
+
+  public void locIteratorAdvancePast (int loc) {
+    decodePositions ();
+    int tf = docIteratorGetMatchTf ();
+
+    while ((this.locIndex < tf) && (this.positions[this.locIndex] <= loc))
+      this.locIndex ++;
+  }
+
+  public void locIteratorFinish () {
+    this.locIndex = docIteratorGetMatchTf ();
+  }
+
+  public int locIteratorGetMatch () {
+    decodePositions ();
+    return this.positions[this.locIndex];
+  }
+
+  public boolean locIteratorHasMatch () {
+    return (this.locIndex < docIteratorGetMatchTf ());
+  }
+
+  /**
+   *  Get the term that this operator reads.
+   *  @return The term string.
+   */
+  public String getTerm () {
+    return this.term;
+  }
+
+  /**
+   *  Get a canonical signature of the term.
+   *  @return The signature.
+   */
+  public String getSignature () {
+    return (this.term + "." + this.field);
   }
 
   /**
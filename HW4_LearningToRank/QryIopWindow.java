@@ -2,18 +2,10 @@
  * Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
  */
 
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-
 /**
- * The NEAR operator for all retrieval models.
+ * The WINDOW operator for all retrieval models.
  */
-public class QryIopWindow extends QryIop {
-
-
-    private int maxDiff;
+public class QryIopWindow extends QryIopProximity {
 
     public QryIopWindow() {
     }
@@ -23,102 +15,106 @@ public class QryIopWindow extends QryIop {
     }
 
     /**
-     * Evaluate the query operator; the result is an internal inverted
-     * list that may be accessed via the internal iterators.
+     * Find the locations where all arguments occur, in any order,
+     * within a window of maxDiff positions.  The location of a match is
+     * the last location in the window.
+     * <p>
+     * The arguments are kept in a min-heap ordered by their current
+     * location (ties go to the earlier argument), and the maximum
+     * location is tracked incrementally, so each step costs O(log n)
+     * rather than a scan of every argument.
+     * </p>
      *
-     * @throws IOException Error accessing the Lucene index.
+     * @param s The arguments' positions; write matches to s.out.
+     * @param n The number of arguments.
+     * @return The number of matching locations in s.out.
      */
-    protected void evaluate() throws IOException {
-
-        //  Create an empty inverted list.  If there are no query arguments,
-        //  that's the final result.
+    protected int join(Scratch s, int n) {
 
-        this.invertedList = new InvList(this.getField());
+        int[][] pos = s.pos;
+        int[] tf = s.tf;
+        int[] ptr = s.ptr;
+        int[] heap = s.heap;
+        int count = 0;
 
-        if (args.size() == 0) {
-            return;
+        for (int i = 0; i < n; i++) {
+            ptr[i] = 0;
         }
 
-        //make sure inverted lists have common doc id
-        while (this.docIteratorHasMatchAll(null)) {
+        int max = buildHeap(s, n);
 
-            //boolean check if we should add this result to position list
-            boolean shouldAdd;
-            //boolean check if we should move document to next id
-            boolean move = false;
+        while (true) {
+            int min_i = heap[0];
+            int min = pos[min_i][ptr[min_i]];
 
-            //  Each pass of the loop adds 1 document to result inverted list
-            //  until all of the argument inverted lists are depleted.
-            List<Integer> positions = new ArrayList<>();
-            //get the current minimum document id
-            int minDocId = this.args.get(0).docIteratorGetMatch();
+            if (max - min <= maxDiff) {
 
-            //Iterate through locations for this document
-            while (true) {
-
-                //if no location has match
-                if (!((QryIop) this.args.get(0)).locIteratorHasMatch()) {
-                    break;
-                }
-                //the very first match location on left inverted lost
-                int min = Integer.MAX_VALUE;
-                int max = Integer.MIN_VALUE;
-                int loc_i, loc_diff, indx = -1;
-                //shouldAdd = true;
-
-                //loop through each query, make sure they are WINDOW
-                for (int i = 0; i < this.args.size(); i++) {
-
-                    //get the pointer point to the location that match the location (at least past it)
-                    QryIop q_i = (QryIop) this.args.get(i);
-                    //q_i.locIteratorAdvancePast(loc_0);
-                    if (!q_i.locIteratorHasMatch()) {
-                        max = Integer.MIN_VALUE;
-                        move = true;
-                        break;
+                //record the match, and advance all arguments
+                s.out[count++] = max;
+                for (int i = 0; i < n; i++) {
+                    if (++ptr[i] >= tf[i]) {
+                        return count;
                     }
-                    loc_i = q_i.locIteratorGetMatch();
-                    if (loc_i < min) {
-                        indx = i;
-                    }
-                    min = Math.min(loc_i, min);
-                    max = Math.max(loc_i, max);
-                }
-
-                loc_diff = Math.abs(max - min);
-
-                //check if the location differences is larger than max difference
-                //if so, move the min location pointer to next location
-                if (loc_diff <= maxDiff) {
-                    shouldAdd = true;
-                } else {
-                    shouldAdd = false;
                 }
+                max = buildHeap(s, n);
+            } else {
 
-                //if the boolean shouldAdd is true, which indicates it pass all break condition
-                //then put max into the position list
-                //advance all iterator to the next location
-                if (shouldAdd) {
-                    positions.add(max);
-                    for (Qry arg : this.args) {
-                        ((QryIop) arg).locIteratorAdvance();
-                    }
-                } else {
-                    ((QryIop) this.args.get(indx)).locIteratorAdvance();
-                    if (move) {
-                        break;
-                    }
+                //advance the argument at the minimum location
+                if (++ptr[min_i] >= tf[min_i]) {
+                    return count;
                 }
+                max = Math.max(max, pos[min_i][ptr[min_i]]);
+                siftDown(s, n, 0);
             }
+        }
+    }
 
-            //if position list for this document is not empty
-            if (positions.size() > 0) {
-                Collections.sort(positions);
-                this.invertedList.appendPosting(minDocId, positions);
-            }
+    /**
+     * Whether argument a's current location precedes argument b's.
+     */
+    private static boolean less(Scratch s, int a, int b) {
+        int loc_a = s.pos[a][s.ptr[a]];
+        int loc_b = s.pos[b][s.ptr[b]];
+        return (loc_a < loc_b) || ((loc_a == loc_b) && (a < b));
+    }
+
+    /**
+     * Build the heap of arguments from their current locations.
+     *
+     * @return The maximum current location.
+     */
+    private static int buildHeap(Scratch s, int n) {
+        int max = Integer.MIN_VALUE;
 
-            //continue to next document id
-            this.args.get(0).docIteratorAdvancePast(minDocId);
+        for (int i = 0; i < n; i++) {
+            s.heap[i] = i;
+            max = Math.max(max, s.pos[i][s.ptr[i]]);
+        }
+        for (int i = n / 2 - 1; i >= 0; i--) {
+            siftDown(s, n, i);
+        }
+
+        return max;
+    }
+
+    private static void siftDown(Scratch s, int n, int i) {
+        int[] heap = s.heap;
+
+        while (true) {
+            int c = 2 * i + 1;
+            if (c >= n) {
+                return;
+            }
+            if ((c + 1 < n) && less(s, heap[c + 1], heap[c])) {
+                c++;
+            }
+            if (!less(s, heap[c], heap[i])) {
+                return;
+            }
+            int t = heap[i];
+            heap[i] = heap[c];
+            heap[c] = t;
+            i = c;
         }
     }
 }
@@ -15,6 +15,23 @@ import java.io.*;
  */
 public abstract class QrySop extends Qry {
 
+    /**
+     *  The retrieval models that a query can be compiled for.
+     */
+    protected enum Model { UNRANKED_BOOLEAN, RANKED_BOOLEAN, BM25, INDRI, OTHER };
+
+    /**
+     *  The retrieval model that the operator was compiled for.  getScore
+     *  switches on it instead of testing the model's class.
+     */
+    protected Model model = Model.OTHER;
+
+    /**
+     *  The arguments, if they are all score operators, so that scoring
+     *  loops don't cast them; otherwise empty.
+     */
+    protected QrySop[] sopArgs = new QrySop[0];
+
     /**
      *  Get a score for the document that docIteratorHasMatch matched.
      *  @param r The retrieval model that determines how scores are calculated.
@@ -32,17 +49,99 @@ public abstract class QrySop extends Qry {
      */
     public abstract double getDefaultScore(RetrievalModel r, int docid) throws IOException;
 
+    /**
+     *  Score the next block of documents that the query matches, and
+     *  advance the internal iterator past them.  This implementation
+     *  scores one document at a time; subclasses may score a block with
+     *  a tighter loop.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @param docids Returns the internal ids of the matching documents.
+     *  @param max The maximum number of documents to score.
+     *  @param out Returns the document scores.
+     *  @return The number of documents scored, or 0 if there are no more matches.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    public int scoreBlock(RetrievalModel r, int[] docids, int max, double[] out)
+            throws IOException {
+        int n = 0;
+        while ((n < max) && this.docIteratorHasMatch(r)) {
+            int docid = this.docIteratorGetMatch();
+            docids[n] = docid;
+            out[n] = this.getScore(r);
+            this.docIteratorAdvancePast(docid);
+            n++;
+        }
+        return n;
+    }
+
     /**
      *  Initialize the query operator (and its arguments), including any
      *  internal iterators.  If the query operator is of type QryIop, it
      *  is fully evaluated, and the results are stored in an internal
      *  inverted list that may be accessed via the internal iterator.
      *  @param r A retrieval model that guides initialization
+     *  @param index The index that the query is evaluated against
      *  @throws IOException Error accessing the Lucene index.
      */
-    public void initialize(RetrievalModel r) throws IOException {
+    public void initialize(RetrievalModel r, IndexContext index) throws IOException {
+        this.indexContext = index;
+        this.docIteratorClearMinHeap();
         for (Qry q_i : this.args) {
-            q_i.initialize(r);
+            q_i.initialize(r, index);
+        }
+        this.compile(r);
+    }
+
+    /**
+     *  Compile the operator for a retrieval model:  bind the model and
+     *  precompute whatever its scores need that doesn't change from
+     *  document to document.  initialize compiles each operator after
+     *  its arguments.  Subclasses that precompute values must call this
+     *  method too.
+     *  @param r The retrieval model that determines how scores are calculated.
+     */
+    protected void compile(RetrievalModel r) {
+        this.model = getModel(r);
+
+        boolean allSop = true;
+        for (Qry q_i : this.args) {
+            allSop &= (q_i instanceof QrySop);
+        }
+
+        this.sopArgs = allSop ? this.args.toArray(new QrySop[0]) : new QrySop[0];
+    }
+
+    /**
+     *  Compile a query tree again, e.g., after the collection statistics
+     *  of its inverted lists were changed.
+     *  @param q The root of the query tree.
+     *  @param r The retrieval model that determines how scores are calculated.
+     */
+    public static void compileTree(Qry q, RetrievalModel r) {
+        for (Qry q_i : q.args) {
+            compileTree(q_i, r);
+        }
+        if (q instanceof QrySop) {
+            ((QrySop) q).compile(r);
+        }
+    }
+
+    /**
+     *  Get the Model of a retrieval model.
+     *  @param r A retrieval model.
+     *  @return The model that it is compiled as.
+     */
+    private static Model getModel(RetrievalModel r) {
+        if (r instanceof RetrievalModelUnrankedBoolean) {
+            return Model.UNRANKED_BOOLEAN;
+        } else if (r instanceof RetrievalModelRankedBoolean) {
+            return Model.RANKED_BOOLEAN;
+        } else if (r instanceof RetrievalModelBM25) {
+            return Model.BM25;
+        } else if (r instanceof RetrievalModelIndri) {
+            return Model.INDRI;
+        } else {
+            return Model.OTHER;
         }
     }
 }
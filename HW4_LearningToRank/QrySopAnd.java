@@ -9,6 +9,12 @@ import java.io.*;
  */
 public class QrySopAnd extends QrySop {
 
+    /**
+     * The Indri exponent of each argument's score, 1/n.  It is
+     * computed by compile.
+     */
+    private double exponent;
+
     /**
      * Indicates whether the query has a match.
      *
@@ -16,7 +22,7 @@ public class QrySopAnd extends QrySop {
      * @return True if the query matches, otherwise false.
      */
     public boolean docIteratorHasMatch(RetrievalModel r) {
-        if (r instanceof RetrievalModelIndri){
+        if (this.model == Model.INDRI){
             return this.docIteratorHasMatchMin(r);
         }
         return this.docIteratorHasMatchAll(r);
@@ -31,11 +37,11 @@ public class QrySopAnd extends QrySop {
      */
     public double getScore(RetrievalModel r) throws IOException {
 
-        if (r instanceof RetrievalModelUnrankedBoolean) {
+        if (this.model == Model.UNRANKED_BOOLEAN) {
             return this.getScoreUnrankedBoolean(r);
-        } else if (r instanceof RetrievalModelRankedBoolean) {
+        } else if (this.model == Model.RANKED_BOOLEAN) {
             return this.getScoreRankedBoolean(r);
-        } else if (r instanceof RetrievalModelIndri) {
+        } else if (this.model == Model.INDRI) {
             return this.getScoreIndri(r);
         } else {
             throw new IllegalArgumentException
@@ -76,8 +82,8 @@ public class QrySopAnd extends QrySop {
     private double getScoreAnd(RetrievalModel r) throws IOException {
 
         double result = Double.MAX_VALUE;
-        for (Qry arg : this.args) {
-            result = Math.min(result, ((QrySop) arg).getScore(r));
+        for (QrySop arg : this.sopArgs) {
+            result = Math.min(result, arg.getScore(r));
         }
         return result;
     }
@@ -93,14 +99,12 @@ public class QrySopAnd extends QrySop {
         double score = 1.0;
 
         //loop through args and get multiplication on scores
-        for (Qry q : this.args) {
-            QrySop q_i = (QrySop) q;
-
-            //the double here for 1/size is very imporant!!! if missing, the score calculation will be different
-            if (q_i.docIteratorHasMatchCache() && q_i.docIteratorGetMatch() == this.docIteratorGetMatch()) {
-                score *= Math.pow(q_i.getScore(r), 1.0 / (double)this.args.size());
+        int docid = this.docIteratorGetMatch();
+        for (QrySop q_i : this.sopArgs) {
+            if (q_i.docIteratorHasMatchCache() && q_i.docIteratorGetMatch() == docid) {
+                score *= Math.pow(q_i.getScore(r), this.exponent);
             } else {
-                score *= Math.pow(q_i.getDefaultScore(r, this.docIteratorGetMatch()), (double)1 / this.args.size());
+                score *= Math.pow(q_i.getDefaultScore(r, docid), this.exponent);
             }
         }
         return score;
@@ -110,12 +114,34 @@ public class QrySopAnd extends QrySop {
     public double getDefaultScore(RetrievalModel r, int docid) throws IOException {
         double score = 1.0;
 
-        for (Qry q : this.args) {
-            QrySop q_i = (QrySop) q;
-            score *= Math.pow(q_i.getDefaultScore(r, docid), 1.0 / this.args.size());
+        for (QrySop q_i : this.sopArgs) {
+            score *= Math.pow(q_i.getDefaultScore(r, docid), this.exponent);
         }
 
         return score;
     }
 
+    /**
+     * Get the Indri exponent of an argument's score, as compile
+     * computed it.
+     *
+     * @param i The argument.
+     * @return The exponent.
+     */
+    public double getExponent(int i) {
+        return this.exponent;
+    }
+
+    /**
+     * Compile the operator for a retrieval model.
+     *
+     * @param r The retrieval model that determines how scores are calculated.
+     */
+    protected void compile(RetrievalModel r) {
+        super.compile(r);
+
+        //the double here for 1/size is very imporant!!! if missing, the score calculation will be different
+        this.exponent = 1.0 / (double) this.args.size();
+    }
+
 }
@@ -26,9 +26,9 @@ public class QrySopOr extends QrySop {
      */
     public double getScore(RetrievalModel r) throws IOException {
 
-        if (r instanceof RetrievalModelUnrankedBoolean) {
+        if (this.model == Model.UNRANKED_BOOLEAN) {
             return this.getScoreUnrankedBoolean(r);
-        } else if (r instanceof RetrievalModelRankedBoolean) {
+        } else if (this.model == Model.RANKED_BOOLEAN) {
             return this.getScoreRankedBoolean(r);
         } else {
             throw new IllegalArgumentException
@@ -66,9 +66,9 @@ public class QrySopOr extends QrySop {
 
     private double getScoreOr(RetrievalModel r) throws IOException {
         double result = Double.MIN_VALUE;
-        for (Qry arg : this.args) {
+        for (QrySop arg : this.sopArgs) {
             if (arg.docIteratorHasMatch(r) && this.docIteratorGetMatch() == arg.docIteratorGetMatch()) {
-                result = Math.max(((QrySop) arg).getScore(r), result);
+                result = Math.max(arg.getScore(r), result);
             }
         }
         return result;
@@ -12,8 +12,33 @@ public class QrySopScore extends QrySop {
 
     /**
      *  Document-independent values that should be determined just once.
-     *  Some retrieval models have these, some don't.
+     *  Some retrieval models have these, some don't.  They are bound
+     *  from the index's FieldStats when the operator is initialized.
      */
+    private double N;
+    private double sumOfFieldLengths;
+    private double avgFieldLength;
+
+    /**
+     *  Values of the BM25 and Indri score formulas that are the same
+     *  for every document.  They are computed by compile.
+     */
+    private double bm25K1;
+    private double bm25B;
+    private double bm25OneMinusB;
+    private double bm25Idf;
+    private double bm25UserWeight;
+    private double indriMu;
+    private double indriOneMinusLambda;
+    private double indriMuPMLE;
+    private double indriLambdaPMLE;
+    private double indriDefaultNumerator;
+    private double indriDefaultLambdaPMLE;
+
+    /**
+     *  The term frequencies of the block that scoreBlock is scoring.
+     */
+    private int[] blockTfs = new int[0];
 
     /**
      * Indicates whether the query has a match.
@@ -34,17 +59,18 @@ public class QrySopScore extends QrySop {
      */
     public double getScore(RetrievalModel r) throws IOException {
 
-        if (r instanceof RetrievalModelUnrankedBoolean) {
-            return this.getScoreUnrankedBoolean(r);
-        } else if (r instanceof RetrievalModelRankedBoolean) {
-            return this.getScoreRankedBoolean(r);
-        } else if (r instanceof RetrievalModelBM25) {
-            return this.getScoreBM25(r);
-        } else if (r instanceof RetrievalModelIndri) {
-            return this.getScoreIndri(r);
-        } else {
-            throw new IllegalArgumentException
-                    (r.getClass().getName() + " doesn't support the SCORE operator.");
+        switch (this.model) {
+            case UNRANKED_BOOLEAN:
+                return this.getScoreUnrankedBoolean(r);
+            case RANKED_BOOLEAN:
+                return this.getScoreRankedBoolean(r);
+            case BM25:
+                return this.getScoreBM25(r);
+            case INDRI:
+                return this.getScoreIndri(r);
+            default:
+                throw new IllegalArgumentException
+                        (r.getClass().getName() + " doesn't support the SCORE operator.");
         }
     }
 
@@ -74,7 +100,7 @@ public class QrySopScore extends QrySop {
         if (!this.docIteratorHasMatchCache()) {
             return 0.0;
         } else {
-            return ((QryIop) this.args.get(0)).docIteratorGetMatchPosting().tf;
+            return ((QryIop) this.args.get(0)).docIteratorGetMatchTf();
         }
     }
 
@@ -90,29 +116,61 @@ public class QrySopScore extends QrySop {
             return 0.0;
         } else {
 
-            double k1 = RetrievalModelBM25.k1;
-            double b = RetrievalModelBM25.b;
-            double k3 = RetrievalModelBM25.k3;
-
             QryIop q = (QryIop) this.args.get(0);
 
-            double N = (double) Idx.getNumDocs();
-            double df = (double) q.getDf();
-            double tf = (double) q.docIteratorGetMatchPosting().tf;
-            double qtf = (double) 1;
-            double doclen = (double) Idx.getFieldLength(q.getField(), this.docIteratorGetMatch());
+            double tf = (double) q.docIteratorGetMatchTf();
+            double doclen = (double) this.indexContext.getFieldLength(q.getField(), this.docIteratorGetMatch());
 
-            double tmp_sum = (double) Idx.getSumOfFieldLengths(q.getField());
-            double tmp_length = (double) Idx.getDocCount(q.getField());
-            double avg_doclen = tmp_sum / tmp_length;
+            return scoreBM25(tf, doclen);
+        }
+    }
+
+    /**
+     * The BM25 formula, from the values that compile computed.  Scores
+     * and upper bounds both use it.
+     *
+     * @param tf The term frequency.
+     * @param doclen The length of the document's field.
+     * @return The score.
+     */
+    private double scoreBM25(double tf, double doclen) {
+        double tf_weight = (tf) / (tf + this.bm25K1 * (this.bm25OneMinusB + this.bm25B * (doclen / this.avgFieldLength)));
+
+        return this.bm25Idf * tf_weight * this.bm25UserWeight;
+    }
+
+    /**
+     * Get an upper bound on the BM25 score of any document in the
+     * argument's inverted list.  The tf weight grows with tf and
+     * shrinks with document length, so it is computed from the list's
+     * maximum tf and the field's minimum length.
+     *
+     * @param r The retrieval model that determines how scores are calculated.
+     * @return The maximum document score.
+     * @throws IOException Error accessing the Lucene index
+     */
+    public double getUpperBoundBM25(RetrievalModel r) throws IOException {
+        QryIop q = (QryIop) this.args.get(0);
+        return getUpperBoundBM25(q.getListMaxTf(),
+                this.indexContext.getMinFieldLength(q.getField()));
+    }
 
-            double idf = Math.max(Math.log((N - df + 0.5) / (df + 0.5)), 0.0);
-            double tf_weight = (tf) / (tf + k1 * (1 - b + b * (doclen / avg_doclen)));
-            double user_weight = ((k3 + 1) * qtf) / (k3 + qtf);
+    /**
+     * Get an upper bound on the BM25 score of documents whose tf and
+     * length are bounded, e.g., the documents of one block of the
+     * inverted list.
+     *
+     * @param maxTf The largest tf of the documents.
+     * @param minLength The shortest length of the documents.
+     * @return The maximum document score.
+     */
+    public double getUpperBoundBM25(int maxTf, int minLength) {
 
-            double score = idf * tf_weight * user_weight;
-            return score;
+        if (maxTf == 0) {
+            return 0.0;
         }
+
+        return scoreBM25((double) maxTf, (double) minLength);
     }
 
     /**
@@ -124,20 +182,105 @@ public class QrySopScore extends QrySop {
      */
     public double getScoreIndri(RetrievalModel r) throws IOException {
 
-        double mu = RetrievalModelIndri.mu;
-        double lambda = RetrievalModelIndri.lambda;
+        QryIop q = (QryIop) this.args.get(0);
+
+        double tf = (double) q.docIteratorGetMatchTf();
+        double tmp_length = (double) this.indexContext.getFieldLength(q.getField(), q.docIteratorGetMatch());
+
+        return scoreIndri(tf, tmp_length);
+    }
+
+    /**
+     * The Indri formula for a document that matches, from the values
+     * that compile computed.  Scores and upper bounds both use it.
+     *
+     * @param tf The term frequency.
+     * @param tmp_length The length of the document's field.
+     * @return The score.
+     */
+    private double scoreIndri(double tf, double tmp_length) {
+        return this.indriOneMinusLambda * (tf + this.indriMuPMLE) / (tmp_length + this.indriMu) + this.indriLambdaPMLE;
+    }
+
+    /**
+     * The Indri formula for a document that doesn't match, from the
+     * values that compile computed.  Default scores and upper bounds
+     * both use it.
+     *
+     * @param tmp_length The length of the document's field.
+     * @return The score.
+     */
+    private double defaultScoreIndri(double tmp_length) {
+        return this.indriDefaultNumerator / (tmp_length + this.indriMu) + this.indriDefaultLambdaPMLE;
+    }
+
+    /**
+     * Get an upper bound on the Indri score of a document of a given
+     * length whose tf is at most maxTf, whether or not it matches.  The
+     * score grows with tf and shrinks with length, and a document that
+     * doesn't match gets the default score.
+     *
+     * @param maxTf The largest tf of the document.
+     * @param length The length of the document's field.
+     * @return The maximum document score.
+     */
+    public double getUpperBoundIndri(int maxTf, int length) {
+
+        double tmp_length = (double) length;
+
+        return Math.max(scoreIndri((double) maxTf, tmp_length), defaultScoreIndri(tmp_length));
+    }
+
+    /**
+     * Score the next block of documents that the query matches.  For
+     * BM25 and Indri, the block's tfs are copied from the inverted list
+     * and its lengths from the document length store, and then all of
+     * the documents are scored in one loop over primitive arrays that
+     * the JIT can unroll and vectorize.  Scores are computed exactly
+     * as getScoreBM25 and getScoreIndri compute them.
+     *
+     * @param r The retrieval model that determines how scores are calculated.
+     * @param docids Returns the internal ids of the matching documents.
+     * @param max The maximum number of documents to score.
+     * @param out Returns the document scores.
+     * @return The number of documents scored, or 0 if there are no more matches.
+     * @throws IOException Error accessing the Lucene index
+     */
+    public int scoreBlock(RetrievalModel r, int[] docids, int max, double[] out)
+            throws IOException {
+
+        if (!((this.model == Model.BM25) || (this.model == Model.INDRI))) {
+            return super.scoreBlock(r, docids, max, out);
+        }
+
+        if (this.blockTfs.length < max) {
+            this.blockTfs = new int[max];
+        }
 
         QryIop q = (QryIop) this.args.get(0);
+        int[] tfs = this.blockTfs;
+        int n = q.docIteratorNextBlock(docids, tfs, max);
+        String field = q.getField();
 
-        double tf = (double) q.docIteratorGetMatchPosting().tf;
-        double ctf = (double) q.getCtf();
-        double tmp_sum = (double) Idx.getSumOfFieldLengths(q.getField());
-        double tmp_length = (double) Idx.getFieldLength(q.getField(), q.docIteratorGetMatch());
-        double pMLE = ctf / tmp_sum;
+        this.docIteratorClearMatchCache();
 
-        double score = (1 - lambda) * (tf + mu * pMLE) / (tmp_length + mu) + lambda * pMLE;
+        //  out holds the lengths until they are replaced by scores.
 
-        return score;
+        for (int j = 0; j < n; j++) {
+            out[j] = (double) this.indexContext.getFieldLength(field, docids[j]);
+        }
+
+        if (this.model == Model.BM25) {
+            for (int j = 0; j < n; j++) {
+                out[j] = scoreBM25((double) tfs[j], out[j]);
+            }
+        } else {
+            for (int j = 0; j < n; j++) {
+                out[j] = scoreIndri((double) tfs[j], out[j]);
+            }
+        }
+
+        return n;
     }
 
     /**
@@ -149,23 +292,12 @@ public class QrySopScore extends QrySop {
      */
     public double getDefaultScore(RetrievalModel r, int docid) throws IOException {
 
-        if (r instanceof RetrievalModelIndri) {
-            double mu = RetrievalModelIndri.mu;
-            double lambda = RetrievalModelIndri.lambda;
-
+        if (this.model == Model.INDRI) {
             QryIop q = (QryIop) this.args.get(0);
 
-            double ctf = (double) q.getCtf();
-            //extra smoothing when ctf=0. let it equals to 0.5 for calculation on pMLE
-            if (ctf == 0) {
-                ctf = 0.5;
-            }
-            double tmp_sum = (double) Idx.getSumOfFieldLengths(q.getField());
-            double tmp_length = (double) Idx.getFieldLength(q.getField(), docid);
-            double pMLE = ctf / tmp_sum;
+            double tmp_length = (double) this.indexContext.getFieldLength(q.getField(), docid);
 
-            double score = (1 - lambda) * mu * pMLE / (tmp_length + mu) + lambda * pMLE;
-            return score;
+            return defaultScoreIndri(tmp_length);
         } else {
             return 0.0;
         }
@@ -178,12 +310,78 @@ public class QrySopScore extends QrySop {
      * inverted list that may be accessed via the internal iterator.
      *
      * @param r A retrieval model that guides initialization
+     * @param index The index that the query is evaluated against
      * @throws IOException Error accessing the Lucene index.
      */
-    public void initialize(RetrievalModel r) throws IOException {
+    public void initialize(RetrievalModel r, IndexContext index) throws IOException {
+
+        this.indexContext = index;
+
+        //  SCORE reads only tf, so the argument needs no positions.
 
         Qry q = this.args.get(0);
-        q.initialize(r);
+        ((QryIop) q).setNeedsPositions(false);
+        q.initialize(r, index);
+
+        String field = ((QryIop) q).getField();
+        FieldStats stats = index.getFieldStats();
+
+        this.N = (double) stats.getNumDocs();
+        this.sumOfFieldLengths = (double) stats.getSumOfFieldLengths(field);
+        this.avgFieldLength = stats.getAvgFieldLength(field);
+
+        this.compile(r);
+    }
+
+    /**
+     * Compile the operator for a retrieval model.  The parts of the
+     * BM25 and Indri formulas that depend only on the model's
+     * parameters and the argument's df and ctf are computed once, in
+     * the same order as the formulas compute them, so scores don't
+     * change.  The operator must be compiled again if the argument's
+     * collection statistics change.
+     *
+     * @param r The retrieval model that determines how scores are calculated.
+     */
+    protected void compile(RetrievalModel r) {
+
+        super.compile(r);
+
+        QryIop q = (QryIop) this.args.get(0);
+
+        if (this.model == Model.BM25) {
+            double k1 = RetrievalModelBM25.k1;
+            double b = RetrievalModelBM25.b;
+            double k3 = RetrievalModelBM25.k3;
+
+            double N = this.N;
+            double df = (double) q.getDf();
+            double qtf = (double) 1;
+
+            this.bm25K1 = k1;
+            this.bm25B = b;
+            this.bm25OneMinusB = 1 - b;
+            this.bm25Idf = Math.max(Math.log((N - df + 0.5) / (df + 0.5)), 0.0);
+            this.bm25UserWeight = ((k3 + 1) * qtf) / (k3 + qtf);
+        } else if (this.model == Model.INDRI) {
+            double mu = RetrievalModelIndri.mu;
+            double lambda = RetrievalModelIndri.lambda;
+
+            double ctf = (double) q.getCtf();
+            double pMLE = ctf / this.sumOfFieldLengths;
+
+            this.indriMu = mu;
+            this.indriOneMinusLambda = 1 - lambda;
+            this.indriMuPMLE = mu * pMLE;
+            this.indriLambdaPMLE = lambda * pMLE;
+
+            //  extra smoothing when ctf=0. let it equals to 0.5 for calculation on pMLE
+
+            double defaultPMLE = ((ctf == 0) ? 0.5 : ctf) / this.sumOfFieldLengths;
+
+            this.indriDefaultNumerator = (1 - lambda) * mu * defaultPMLE;
+            this.indriDefaultLambdaPMLE = lambda * defaultPMLE;
+        }
     }
 
 }
@@ -28,7 +28,7 @@ public class QrySopSum extends QrySop {
      */
     public double getScore(RetrievalModel r) throws IOException {
 
-        if (r instanceof RetrievalModelBM25) {
+        if (this.model == Model.BM25) {
             return this.getScoreBM25(r);
         } else {
             throw new IllegalArgumentException(r.getClass().getName() + " doesn't support the SUM operator.");
@@ -49,8 +49,7 @@ public class QrySopSum extends QrySop {
         } else {
             double sum_result = 0.0;
             int docid = this.docIteratorGetMatch();
-            for (Qry q : this.args) {
-                QrySop q_i = (QrySop) q;
+            for (QrySop q_i : this.sopArgs) {
                 if (q_i.docIteratorHasMatch(r) && docid == q_i.docIteratorGetMatch()) {
                     sum_result += q_i.getScore(r);
                 }
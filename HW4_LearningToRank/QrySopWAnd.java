@@ -13,6 +13,12 @@ public class QrySopWAnd extends QrySop {
     public ArrayList<Double> weights;
     public double ttlWeights = 0;
 
+    /**
+     * The Indri exponent of each argument's score, its share of the
+     * total weight.  They are computed by compile.
+     */
+    private double[] exponents = new double[0];
+
     public double sumWeights(ArrayList<Double> weights) {
         double ttl = 0;
         for (double w : weights) {
@@ -40,7 +46,7 @@ public class QrySopWAnd extends QrySop {
      */
     public double getScore(RetrievalModel r) throws IOException {
 
-        if (r instanceof RetrievalModelIndri) {
+        if (this.model == Model.INDRI) {
             return this.getscoreIndri(r);
         } else {
             throw new IllegalArgumentException(r.getClass().getName() + " doesn't support the WSUM operator.");
@@ -62,15 +68,16 @@ public class QrySopWAnd extends QrySop {
             double score = 1.0;
 
             //loop through args and get multiplication on scores
-            for (int i = 0; i < this.args.size(); i++) {
-                QrySop q_i = (QrySop) this.args.get(i);
-                double weight_rate = weights.get(i) / ttlWeights;
+            int docid = this.docIteratorGetMatch();
+            for (int i = 0; i < this.sopArgs.length; i++) {
+                QrySop q_i = this.sopArgs[i];
+                double weight_rate = this.exponents[i];
 
                 //calculation
-                if (q_i.docIteratorHasMatchCache() && q_i.docIteratorGetMatch() == this.docIteratorGetMatch()) {
+                if (q_i.docIteratorHasMatchCache() && q_i.docIteratorGetMatch() == docid) {
                     score *= Math.pow(q_i.getScore(r), weight_rate);
                 } else {
-                    score *= Math.pow(q_i.getDefaultScore(r, this.docIteratorGetMatch()), weight_rate);
+                    score *= Math.pow(q_i.getDefaultScore(r, docid), weight_rate);
                 }
             }
             return score;
@@ -86,12 +93,37 @@ public class QrySopWAnd extends QrySop {
          * Note that AND in Indri is different from AND in Boolean, it uses
          * docIteratorHasMatchMin, so we need to check whether docid matches.
          */
-        for (int i = 0; i < this.args.size(); i++) {
-            QrySop q_i = (QrySop) this.args.get(i);
-            double weight_rate = weights.get(i) / ttlWeights;
+        for (int i = 0; i < this.sopArgs.length; i++) {
+            QrySop q_i = this.sopArgs[i];
+            double weight_rate = this.exponents[i];
 
             score *= Math.pow(q_i.getDefaultScore(r, docid), weight_rate);
         }
         return score;
     }
+
+    /**
+     * Get the Indri exponent of an argument's score, as compile
+     * computed it.
+     *
+     * @param i The argument.
+     * @return The exponent.
+     */
+    public double getExponent(int i) {
+        return this.exponents[i];
+    }
+
+    /**
+     * Compile the operator for a retrieval model.
+     *
+     * @param r The retrieval model that determines how scores are calculated.
+     */
+    protected void compile(RetrievalModel r) {
+        super.compile(r);
+
+        this.exponents = new double[this.weights.size()];
+        for (int i = 0; i < this.exponents.length; i++) {
+            this.exponents[i] = this.weights.get(i) / this.ttlWeights;
+        }
+    }
 }
@@ -14,6 +14,12 @@ public class QrySopWSum extends QrySop {
     public ArrayList<Double> weights;
     public double ttlWeights;
 
+    /**
+     * Each argument's share of the total weight.  They are computed by
+     * compile.
+     */
+    private double[] weightRates = new double[0];
+
     public double sumWeights(ArrayList<Double> weights) {
         double ttl = 0;
         for (double w : weights) {
@@ -41,7 +47,7 @@ public class QrySopWSum extends QrySop {
      */
     public double getScore(RetrievalModel r) throws IOException {
 
-        if (r instanceof RetrievalModelIndri) {
+        if (this.model == Model.INDRI) {
             return this.getscoreIndri(r);
         } else {
             throw new IllegalArgumentException(r.getClass().getName() + " doesn't support the WSUM operator.");
@@ -63,15 +69,16 @@ public class QrySopWSum extends QrySop {
             double score = 0.0;
 
             //loop through args and get multiplication on scores
-            for (int i = 0; i < this.args.size(); i++) {
-                QrySop q_i = (QrySop) this.args.get(i);
-                double weight_rate =this.weights.get(i) / this.ttlWeights;
+            int docid = this.docIteratorGetMatch();
+            for (int i = 0; i < this.sopArgs.length; i++) {
+                QrySop q_i = this.sopArgs[i];
+                double weight_rate = this.weightRates[i];
 
                 //calculation
-                if (q_i.docIteratorHasMatchCache() && q_i.docIteratorGetMatch() == this.docIteratorGetMatch()) {
+                if (q_i.docIteratorHasMatchCache() && q_i.docIteratorGetMatch() == docid) {
                     score += weight_rate * q_i.getScore(r);
                 } else {
-                    score += weight_rate * q_i.getDefaultScore(r, this.docIteratorGetMatch());
+                    score += weight_rate * q_i.getDefaultScore(r, docid);
                 }
             }
             return score;
@@ -84,9 +91,9 @@ public class QrySopWSum extends QrySop {
         double score = 0.0;
 
         //loop through args and get multiplication on scores
-        for (int i = 0; i < this.args.size(); i++) {
-            QrySop q_i = (QrySop) this.args.get(i);
-            double weight_rate = this.weights.get(i) / this.ttlWeights;
+        for (int i = 0; i < this.sopArgs.length; i++) {
+            QrySop q_i = this.sopArgs[i];
+            double weight_rate = this.weightRates[i];
 
             //calculation
 
@@ -95,4 +102,18 @@ public class QrySopWSum extends QrySop {
         }
         return score;
     }
+
+    /**
+     * Compile the operator for a retrieval model.
+     *
+     * @param r The retrieval model that determines how scores are calculated.
+     */
+    protected void compile(RetrievalModel r) {
+        super.compile(r);
+
+        this.weightRates = new double[this.weights.size()];
+        for (int i = 0; i < this.weightRates.length; i++) {
+            this.weightRates[i] = this.weights.get(i) / this.ttlWeights;
+        }
+    }
 }
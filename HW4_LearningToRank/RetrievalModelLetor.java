@@ -462,7 +462,8 @@ public class RetrievalModelLetor extends RetrievalModel {
     }
 
     public void printResults(String queryName, ScoreList result, PrintWriter writer, int maxRankLength) throws IOException {
-        result.sort();
+        result.sort(maxRankLength);
+        result.resolveExternalIds(maxRankLength);
         System.out.println(queryName + ":  ");
         if (result.size() < 1) {
             //if there is no result output, record the dummy output
@@ -473,7 +474,7 @@ public class RetrievalModelLetor extends RetrievalModel {
         } else {
             for (int i = 0; i < result.size(); i++) {
                 if (i < maxRankLength) {
-                    String exportContent = queryName + " Q0 " + Idx.getExternalDocid(result.getDocid(i)) + " " +
+                    String exportContent = queryName + " Q0 " + result.getExternalDocid(i) + " " +
                             (i + 1) + " " + result.getDocidScore(i) + " run-1";
                     System.out.println(exportContent);
                     writer.println(exportContent);
@@ -7,42 +7,261 @@ import java.util.*;
 /**
  *  This class implements the document score list data structure
  *  and provides methods for accessing and manipulating them.
+ *  <p>
+ *  Entries store only internal docids and scores.  External docids
+ *  are resolved lazily, in docid-ordered batches, only for entries
+ *  that are printed, or whose scores tie exactly where sorting needs
+ *  them to be ordered.
+ *  </p>
+ *  <p>
+ *  A list may be bounded to the k best entries, in the order defined
+ *  by ScoreListComparator.  A bounded list is a min-heap of k entries
+ *  with the lowest-ranked entry first, so a document that can't rank
+ *  in the top k is rejected in O(1) and one that can replaces the
+ *  lowest entry in O(log k).  Within the heap, tied scores are ordered
+ *  by internal docid.  Documents that tie the lowest entry's score are
+ *  kept after the heap, and sort decides which of them are in the top
+ *  k by external docid.  The list stays a heap until it is sorted.
+ *  </p>
  */
 public class ScoreList {
 
   //  A utility class to create a <internalDocid, externalDocid, score>
-  //  object.
+  //  object.  The external docid is null until it is resolved.
 
   private class ScoreListEntry {
     private int docid;
-    private String externalId;
+    private String externalId = null;
     private double score;
 
     private ScoreListEntry(int internalDocid, double score) {
       this.docid = internalDocid;
       this.score = score;
-
-      try {
-	this.externalId = Idx.getExternalDocid (this.docid);
-      }
-      catch (IOException ex){
-	ex.printStackTrace();
-      }
     }
   }
 
   /**
-   *  A list of document ids and scores. 
+   *  A list of document ids and scores.
    */
   private List<ScoreListEntry> scores = new ArrayList<ScoreListEntry>();
 
   /**
-   *  Append a document score to a score list.
+   *  The index that the internal docids refer to.
+   */
+  private final IndexContext indexContext;
+
+  /**
+   *  The maximum number of entries, or 0 if the list is unbounded.
+   */
+  private final int capacity;
+
+  /**
+   *  True if the entries of a bounded list are in heap order.
+   */
+  private boolean isHeap = true;
+
+  /**
+   *  The number of entries in the heap of a bounded list.  The entries
+   *  after the heap tie the score of its lowest entry.
+   */
+  private int heapSize = 0;
+
+  private final ScoreListComparator comparator = new ScoreListComparator();
+
+  /**
+   *  Constructor.  An empty score list for the current index.
+   */
+  public ScoreList() {
+    this(Idx.getIndexContext());
+  }
+
+  /**
+   *  Constructor.  An empty score list.
+   *  @param index The index that the internal docids refer to.
+   */
+  public ScoreList(IndexContext index) {
+    this(index, 0);
+  }
+
+  /**
+   *  Constructor.  An empty score list that keeps only the k best
+   *  entries that are added to it.
+   *  @param index The index that the internal docids refer to.
+   *  @param k The number of entries to keep, or 0 to keep all of them.
+   */
+  public ScoreList(IndexContext index, int k) {
+    this.indexContext = index;
+    this.capacity = Math.max(k, 0);
+  }
+
+  /**
+   *  Append a document score to a score list.  If the list is bounded
+   *  and full, the document replaces the lowest-ranked entry if it
+   *  ranks higher, and is discarded otherwise.
    *  @param docid An internal document id.
    *  @param score The document's score.
    */
   public void add(int docid, double score) {
-    scores.add(new ScoreListEntry(docid, score));
+    if (this.capacity == 0) {
+      scores.add(new ScoreListEntry(docid, score));
+      return;
+    }
+
+    if (! this.isHeap)
+      heapify();
+
+    //  Most documents score below the lowest entry, so they are
+    //  rejected without creating an entry.
+
+    if ((this.heapSize == this.capacity) &&
+        (compareScores(score, this.scores.get(0).score) > 0))
+      return;
+
+    insert(new ScoreListEntry(docid, score));
+  }
+
+  /**
+   *  Insert an entry into a bounded list.  If the heap is full, the
+   *  entry must not rank below its lowest entry.
+   */
+  private void insert(ScoreListEntry e) {
+
+    //  Nothing follows the heap until it is full.
+
+    if (this.heapSize < this.capacity) {
+      this.scores.add(e);
+      siftUp(this.heapSize++);
+      return;
+    }
+
+    ScoreListEntry lowest = this.scores.get(0);
+
+    if (compareScores(e.score, lowest.score) == 0) {
+      this.scores.add(e);
+      return;
+    }
+
+    this.scores.set(0, e);
+    siftDown(0);
+
+    //  The replaced entry still ties the new lowest entry, or else
+    //  neither it nor the entries after the heap can rank in the top k.
+
+    if (compareScores(lowest.score, this.scores.get(0).score) == 0)
+      this.scores.add(lowest);
+    else
+      this.scores.subList(this.heapSize, this.scores.size()).clear();
+  }
+
+  /**
+   *  Get the maximum number of entries that the list keeps.
+   *  @return The bound, or 0 if the list is unbounded.
+   */
+  public int getCapacity() {
+    return this.capacity;
+  }
+
+  /**
+   *  Get the score that a document must reach to be added to a full
+   *  bounded list.  A document that scores lower can't be in the
+   *  top k, so query evaluation may skip it.
+   *  @return The lowest score in the list if it is bounded and full,
+   *    otherwise negative infinity.
+   */
+  public double getMinCompetitiveScore() {
+    if (this.capacity == 0)
+      return Double.NEGATIVE_INFINITY;
+
+    if (! this.isHeap)
+      heapify();
+
+    if (this.heapSize < this.capacity)
+      return Double.NEGATIVE_INFINITY;
+
+    return this.scores.get(0).score;
+  }
+
+  /**
+   *  Compare two scores in ranking order:  higher scores rank first.
+   *  This is a total order (Double.compare), so NaN ranks above every
+   *  other score and 0.0 ranks above -0.0.
+   *  @return A negative value if score1 ranks first, a positive value
+   *    if score2 ranks first, or 0 if the scores are identical.
+   */
+  private static int compareScores(double score1, double score2) {
+    return Double.compare(score2, score1);
+  }
+
+  /**
+   *  Compare two entries by score, and then by internal docid.  This
+   *  orders the heap without resolving external docids.
+   */
+  private int compareRank(ScoreListEntry s1, ScoreListEntry s2) {
+    int c = compareScores(s1.score, s2.score);
+
+    return (c != 0) ? c : Integer.compare(s1.docid, s2.docid);
+  }
+
+  //  Heap operations for bounded lists.  An entry's parent ranks no
+  //  higher than the entry.
+
+  /**
+   *  Rebuild the heap, e.g., after scores were changed or the list was
+   *  sorted.
+   */
+  private void heapify() {
+    List<ScoreListEntry> entries = this.scores;
+
+    this.scores = new ArrayList<ScoreListEntry>();
+    this.heapSize = 0;
+    this.isHeap = true;
+
+    for (ScoreListEntry e : entries) {
+      if ((this.heapSize < this.capacity) ||
+          (compareScores(e.score, this.scores.get(0).score) <= 0))
+        insert(e);
+    }
+  }
+
+  private void siftUp(int i) {
+    ScoreListEntry e = this.scores.get(i);
+
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      ScoreListEntry p = this.scores.get(parent);
+
+      if (compareRank(e, p) <= 0)
+        break;
+
+      this.scores.set(i, p);
+      i = parent;
+    }
+
+    this.scores.set(i, e);
+  }
+
+  private void siftDown(int i) {
+    ScoreListEntry e = this.scores.get(i);
+    int size = this.heapSize;
+
+    while (true) {
+      int c = 2 * i + 1;
+
+      if (c >= size)
+        break;
+
+      if ((c + 1 < size) &&
+          (compareRank(this.scores.get(c + 1), this.scores.get(c)) > 0))
+        c++;
+
+      if (compareRank(this.scores.get(c), e) <= 0)
+        break;
+
+      this.scores.set(i, this.scores.get(c));
+      i = c;
+    }
+
+    this.scores.set(i, e);
   }
 
   /**
@@ -63,6 +282,62 @@ public class ScoreList {
     return this.scores.get(n).score;
   }
 
+  /**
+   *  Get the external docid of the n'th entry, resolving it from
+   *  the index if necessary.  Use resolveExternalIds first when many
+   *  entries will be accessed.
+   *  @param n The index of the requested document.
+   *  @return The external document id.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public String getExternalDocid(int n) throws IOException {
+    ScoreListEntry e = this.scores.get(n);
+
+    if (e.externalId == null)
+      e.externalId = this.indexContext.getExternalDocid(e.docid);
+
+    return e.externalId;
+  }
+
+  /**
+   *  Resolve the external docids of the first num entries in one
+   *  batch.  Entries that are already resolved are skipped.
+   *  @param num The number of leading entries to resolve.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void resolveExternalIds(int num) throws IOException {
+    resolveExternalIds(this.scores.subList(0, Math.min(num, this.scores.size())));
+  }
+
+  /**
+   *  Resolve the external docids of a set of entries in one batch.
+   *  @param entries The entries to resolve.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void resolveExternalIds(List<ScoreListEntry> entries)
+    throws IOException {
+
+    List<ScoreListEntry> unresolved = new ArrayList<ScoreListEntry>();
+
+    for (ScoreListEntry e : entries) {
+      if (e.externalId == null)
+        unresolved.add(e);
+    }
+
+    if (unresolved.isEmpty())
+      return;
+
+    int[] docids = new int[unresolved.size()];
+
+    for (int i = 0; i < docids.length; i++)
+      docids[i] = unresolved.get(i).docid;
+
+    String[] externalIds = this.indexContext.getExternalDocids(docids);
+
+    for (int i = 0; i < docids.length; i++)
+      unresolved.get(i).externalId = externalIds[i];
+  }
+
   /**
    *  Set the score of the n'th entry.
    *  @param n The index of the score to change.
@@ -70,6 +345,7 @@ public class ScoreList {
    */
   public void setDocidScore(int n, double score) {
     this.scores.get(n).score = score;
+    this.isHeap = false;
   }
 
   /**
@@ -82,38 +358,97 @@ public class ScoreList {
 
   /*
    *  Compare two ScoreListEntry objects.  Sort by score, then
-   *  internal docid.
+   *  external docid.  The external docids must be resolved if the
+   *  scores are equal.  Scores are ordered by compareScores, which is
+   *  a total order, so NaN scores don't break the sort.
    */
   public class ScoreListComparator implements Comparator<ScoreListEntry> {
 
     @Override
     public int compare(ScoreListEntry s1, ScoreListEntry s2) {
-      if (s1.score > s2.score)
-	return -1;
+      int c = compareScores(s1.score, s2.score);
+
+      if (c != 0)
+	return c;
       else
-	if (s1.score < s2.score)
+	if (s1.externalId.compareTo(s2.externalId)>0)
 	  return 1;
 	else
-	  if (s1.externalId.compareTo(s2.externalId)>0)
-	    return 1;
+	  if (s1.externalId.compareTo(s2.externalId)<0)
+	    return -1;
 	  else
-	    if (s1.externalId.compareTo(s2.externalId)<0)
-	      return -1;
-	    else
-	      return 0;
+	    return 0;
     }
   }
 
   /**
    *  Sort the list by score and external document id.
+   *  @throws IOException Error accessing the Lucene index.
    */
-  public void sort () {
-    Collections.sort(this.scores, new ScoreListComparator());
+  public void sort () throws IOException {
+    sort(Integer.MAX_VALUE);
   }
-  
+
+  /**
+   *  Sort the list by score and external document id, as far as the
+   *  first num entries.  The list is sorted by score first; external
+   *  docids are resolved only for the runs of exactly tied scores that
+   *  overlap the first num entries, which are then ordered by
+   *  ScoreListComparator.  Later runs of tied scores are in no
+   *  particular order.  A bounded list is reduced to its top k, so the
+   *  run of tied scores that straddles rank k is also resolved.
+   *  @param num The number of leading entries that must be in order.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void sort (int num) throws IOException {
+    this.isHeap = false;
+
+    Collections.sort(this.scores,
+                     (s1, s2) -> compareScores(s1.score, s2.score));
+
+    int end = this.scores.size();
+
+    if (this.capacity > 0)
+      end = Math.min(end, this.capacity);
+
+    int prefix = Math.min(num, end);
+
+    //  Find the runs of tied scores, in the same order as the sort
+    //  above, that overlap the prefix or straddle the end.
+
+    List<int[]> ties = new ArrayList<int[]>();
+    List<ScoreListEntry> tied = new ArrayList<ScoreListEntry>();
+
+    for (int i = 0; i < end; ) {
+      int j = i + 1;
+
+      while ((j < this.scores.size()) &&
+             (compareScores(this.scores.get(j).score,
+                            this.scores.get(i).score) == 0))
+        j++;
+
+      if ((j - i > 1) && ((i < prefix) || (j > end))) {
+        ties.add(new int[] {i, j});
+        tied.addAll(this.scores.subList(i, j));
+      }
+
+      i = j;
+    }
+
+    //  Break the ties by external docid.
+
+    resolveExternalIds(tied);
+
+    for (int[] run : ties)
+      Collections.sort(this.scores.subList(run[0], run[1]), this.comparator);
+
+    if (end < this.scores.size())
+      this.scores.subList(end, this.scores.size()).clear();
+  }
+
   /**
    * Reduce the score list to the first num results to save on RAM.
-   * 
+   *
    * @param num Number of results to keep.
    */
   public void truncate(int num) {
@@ -121,5 +456,6 @@ public class ScoreList {
         Math.min(num, scores.size())));
     this.scores.clear();
     this.scores = truncated;
+    this.isHeap = false;
   }
 }
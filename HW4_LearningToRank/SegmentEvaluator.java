@@ -0,0 +1,238 @@
+/**
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.lucene.index.*;
+
+/**
+ *  SegmentEvaluator evaluates one query on each segment (leaf) of a
+ *  Lucene index in parallel, and merges the per-segment results.
+ *  <p>
+ *  The query is parsed once per segment, and each query tree is
+ *  initialized with a leaf view of the index (IndexContext.forLeaf), so
+ *  its inverted lists contain only that segment's documents.  Docids are
+ *  rebased to index docids when inverted lists are read, so document
+ *  lengths, attributes, and external ids work unchanged.  Evaluation
+ *  has three phases:
+ *  </p>
+ *  <pre>
+ *    1. In parallel, initialize each segment's query tree.
+ *    2. Sum the df and ctf of each scored QryIop node across
+ *       segments, and give every segment's copy the whole-index
+ *       statistics.
+ *    3. In parallel, iterate over each segment's matches, and keep
+ *       each segment's top k.
+ *  </pre>
+ *  <p>
+ *  Because df and ctf are corpus-level, scores are identical to serial
+ *  evaluation.  ScoreList ranks by a total order (score, then external
+ *  docid), so the top k of the merged lists is the top k of the serial
+ *  ranking, regardless of the order in which the segments' results are
+ *  merged, even for tied or NaN scores.
+ *  </p>
+ */
+public class SegmentEvaluator {
+
+  //  --------------- Constants and variables ---------------------
+
+  private final ForkJoinPool pool;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Constructor.
+   *  @param parallelism The number of threads that evaluate segments.
+   */
+  public SegmentEvaluator (int parallelism) {
+    this.pool = new ForkJoinPool (parallelism);
+  }
+
+  /**
+   *  Evaluate a query on every segment of an index.
+   *  @param qString A query, including its default query operator.
+   *  @param model The retrieval model determines how matching and scoring is done.
+   *  @param index The index to search.
+   *  @param k The number of results to keep, or 0 to keep all of them.
+   *  @return Search results, or null if the query can't be parsed.
+   *  @throws IOException Error accessing the index.
+   */
+  public ScoreList evaluate (String qString, RetrievalModel model,
+                             IndexContext index, int k)
+    throws IOException {
+
+    List<LeafReaderContext> leaves = index.getIndexReader ().leaves ();
+    Qry[] queries = new Qry[leaves.size ()];
+
+    for (int i = 0; i < queries.length; i++) {
+      queries[i] = QryParser.getQuery (qString);
+    }
+
+    if (queries.length > 0) {
+      System.out.println ("    --> " + queries[0]);
+    }
+
+    ScoreList r = new ScoreList (index, k);
+
+    if ((queries.length == 0) || (queries[0] == null)) {
+      return (queries.length == 0) ? r : null;
+    }
+
+    if (queries[0].args.size () == 0) {		// Ignore empty queries
+      return r;
+    }
+
+    //  Phase 1:  Initialize each segment's query tree.
+
+    List<Callable<ScoreList>> tasks = new ArrayList<Callable<ScoreList>> ();
+
+    for (int i = 0; i < queries.length; i++) {
+      final Qry q = queries[i];
+      final IndexContext leafIndex = index.forLeaf (leaves.get (i));
+
+      tasks.add (() -> {
+        q.initialize (model, leafIndex);
+        return null;
+      });
+    }
+
+    invokeAll (tasks);
+
+    //  Phase 2:  Set whole-index statistics on every QryIop node.
+
+    List<List<QryIop>> iops = new ArrayList<List<QryIop>> ();
+
+    for (Qry q : queries) {
+      List<QryIop> nodes = new ArrayList<QryIop> ();
+      collectIops (q, nodes);
+      iops.add (nodes);
+    }
+
+    for (int n = 0; n < iops.get (0).size (); n++) {
+      int df = 0;
+      int ctf = 0;
+
+      for (List<QryIop> nodes : iops) {
+        df += nodes.get (n).getListDf ();
+        ctf += nodes.get (n).getListCtf ();
+      }
+
+      for (List<QryIop> nodes : iops) {
+        nodes.get (n).setCollectionStatistics (df, ctf);
+      }
+    }
+
+    //  Scores precomputed from the segment statistics are stale.
+
+    for (Qry q : queries) {
+      QrySop.compileTree (q, model);
+    }
+
+    //  Plan the query once, from the whole-index statistics.
+
+    final boolean taat = TaatEvaluator.choose (queries[0], model, r);
+    final boolean pruned = (! taat) && MaxScoreEvaluator.canEvaluate (queries[0], model, r);
+
+    System.out.println ("    Plan:  " + QryEval.getPlanName (taat, pruned));
+
+    //  Phase 3:  Score each segment's matches.
+
+    tasks.clear ();
+
+    for (int i = 0; i < queries.length; i++) {
+      final Qry q = queries[i];
+      final IndexContext leafIndex = index.forLeaf (leaves.get (i));
+
+      tasks.add (() -> {
+        ScoreList leafResults = new ScoreList (leafIndex, k);
+
+        if (taat) {
+          TaatEvaluator.evaluate (q, model, leafResults);
+          return leafResults;
+        }
+
+        if (pruned) {
+          MaxScoreEvaluator.evaluate (q, model, leafResults);
+          return leafResults;
+        }
+
+        while (q.docIteratorHasMatch (model)) {
+          int docid = q.docIteratorGetMatch ();
+          double score = ((QrySop) q).getScore (model);
+          leafResults.add (docid, score);
+          q.docIteratorAdvancePast (docid);
+        }
+
+        return leafResults;
+      });
+    }
+
+    //  Merge.
+
+    for (ScoreList leafResults : invokeAll (tasks)) {
+      for (int i = 0; i < leafResults.size (); i++) {
+        r.add (leafResults.getDocid (i), leafResults.getDocidScore (i));
+      }
+    }
+
+    return r;
+  }
+
+  /**
+   *  Collect the outermost QryIop nodes of a query tree, the ones that
+   *  are scored, in a fixed (preorder) order, so that the nodes of
+   *  identical trees correspond.  The arguments of a QryIop node are
+   *  not collected:  their statistics don't affect scores, and they are
+   *  inert on segments where the node's list came from the QryIopCache.
+   */
+  private static void collectIops (Qry q, List<QryIop> nodes) {
+    if (q instanceof QryIop) {
+      nodes.add ((QryIop) q);
+      return;
+    }
+
+    for (Qry q_i : q.args) {
+      collectIops (q_i, nodes);
+    }
+  }
+
+  /**
+   *  Run tasks on the pool and wait for all of them to finish.
+   *  @return the task results, in task order
+   *  @throws IOException A task failed.
+   */
+  private <T> List<T> invokeAll (List<Callable<T>> tasks)
+    throws IOException {
+
+    List<T> results = new ArrayList<T> ();
+
+    try {
+      for (Future<T> f : this.pool.invokeAll (tasks)) {
+        results.add (f.get ());
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread ().interrupt ();
+      throw new IOException (ex);
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause ();
+
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException (cause);
+    }
+
+    return results;
+  }
+
+  /**
+   *  Shut down the pool's threads.
+   */
+  public void shutdown () {
+    this.pool.shutdown ();
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+import org.apache.lucene.index.*;
+
+/**
+ *  SidecarFile reads and writes the files that are built from an index
+ *  and stored next to it in the index directory, e.g., the external id
+ *  dictionary.  A sidecar file starts with a magic number that
+ *  identifies its format and the version of the index that it was
+ *  built from:
+ *  <pre>
+ *    magic:    int
+ *    version:  long, the index version
+ *  </pre>
+ *  <p>
+ *  Sidecar files are memory-mapped.  A file is written to a uniquely
+ *  named temporary file and then moved into place, so a reader never
+ *  sees a partial file, even if several processes build it at once.
+ *  </p>
+ */
+class SidecarFile {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The number of bytes in the magic number and version that start
+   *  every sidecar file.  Each format's own header follows them.
+   */
+  static final int HEADER_BYTES = 4 + 8;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Get the version of an index that its sidecar files record.
+   *  @param reader The index.
+   *  @return the index version, or -1 if the reader has none.
+   */
+  static long getVersion (IndexReader reader) {
+    return (reader instanceof DirectoryReader) ?
+      ((DirectoryReader) reader).getVersion () : -1;
+  }
+
+  /**
+   *  Memory-map a sidecar file if it exists and matches a format and an
+   *  index version.  The caller checks the rest of its header.
+   *  @param path The sidecar file.
+   *  @param magic The magic number of the file's format.
+   *  @param version The version of the index.
+   *  @return the file contents, or null if the file is missing or stale.
+   *  @throws IOException Error reading the file.
+   */
+  static ByteBuffer open (Path path, int magic, long version)
+    throws IOException {
+
+    if (! Files.isReadable (path)) {
+      return null;
+    }
+
+    ByteBuffer buf = map (path);
+
+    if ((buf.capacity () >= HEADER_BYTES) &&
+        (buf.getInt (0) == magic) &&
+        (buf.getLong (4) == version)) {
+      return buf;
+    }
+
+    return null;
+  }
+
+  /**
+   *  Save a sidecar file, so that the next open can memory-map it.  If
+   *  the file can't be saved (e.g., the index directory isn't
+   *  writable), a warning is printed and the contents are used from
+   *  memory.
+   *  @param path The sidecar file.
+   *  @param contents The file contents.
+   *  @return the mapped file, or contents if the file couldn't be saved.
+   */
+  static ByteBuffer save (Path path, ByteBuffer contents) {
+    try {
+      Path tmp = Files.createTempFile (path.toAbsolutePath ().getParent (),
+                                       path.getFileName ().toString (),
+                                       ".tmp");
+      boolean moved = false;
+
+      try {
+        ByteBuffer b = contents.duplicate ();
+
+        b.rewind ();
+
+        try (FileChannel channel = FileChannel.open (tmp,
+               StandardOpenOption.WRITE)) {
+          while (b.hasRemaining ()) {
+            channel.write (b);
+          }
+        }
+        Files.move (tmp, path, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        moved = true;
+      } finally {
+        if (! moved) {
+          Files.deleteIfExists (tmp);
+        }
+      }
+      return map (path);
+    } catch (IOException ex) {
+      System.err.println ("Warning: Unable to save " + path + ": " + ex);
+      return contents;
+    }
+  }
+
+  /**
+   *  Memory-map a sidecar file.
+   *  @param path The sidecar file.
+   *  @return the file contents.
+   *  @throws IOException Error reading the file.
+   */
+  static ByteBuffer map (Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open (path, StandardOpenOption.READ)) {
+      return channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size ());
+    }
+  }
+
+  /**
+   *  Get a section of a sidecar file.
+   *  @param buf The file contents.
+   *  @param pos The offset of the section.
+   *  @param len The length of the section in bytes.
+   *  @return a buffer that contains only the section.
+   */
+  static ByteBuffer slice (ByteBuffer buf, int pos, int len) {
+    ByteBuffer b = buf.duplicate ();
+    b.position (pos);
+    b.limit (pos + len);
+    return b.slice ();
+  }
+}
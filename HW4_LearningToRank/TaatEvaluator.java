@@ -0,0 +1,340 @@
+/**
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *  TaatEvaluator evaluates a flat #SUM, #OR, or #AND query term at a
+ *  time:  each argument's inverted list is read to its end, and its
+ *  scores are combined into a dense accumulator indexed by docid.
+ *  Document-at-a-time evaluation instead merges the argument lists,
+ *  which costs a heap operation per posting; term-at-a-time evaluation
+ *  reads each list sequentially, but it can't skip postings.
+ *  <p>
+ *  The accumulators are as large as the index, so each thread keeps
+ *  one and reuses it.  Only the documents that a query touches are
+ *  reset.  Each argument's postings are scored in blocks
+ *  (QrySop.scoreBlock).
+ *  </p><p>
+ *  Scores are combined in argument order, exactly as QrySopSum,
+ *  QrySopOr, and QrySopAnd combine them.  For the Indri #AND, an
+ *  argument that doesn't match a document contributes its default
+ *  score; the default scores of the arguments that a document skipped
+ *  are multiplied in when the document is next touched, or when the
+ *  results are collected, so the order of the product is unchanged.
+ *  Rankings are identical to document-at-a-time evaluation.
+ *  </p><p>
+ *  choose is the query planner.  It picks term-at-a-time evaluation for
+ *  short queries unless dynamic pruning is likely to skip most of a
+ *  long list.
+ *  </p>
+ */
+public class TaatEvaluator {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  How queries are evaluated:  chosen by the planner, always
+   *  document-at-a-time, or term-at-a-time whenever possible.
+   */
+  public enum Plan { AUTO, DAAT, TAAT };
+
+  /**
+   *  The planner chooses term-at-a-time evaluation only for queries
+   *  with at most this many arguments.
+   */
+  private static final int MAX_TERMS = 4;
+
+  /**
+   *  If dynamic pruning applies and the longest argument list is more
+   *  than this many times longer than the shortest, the planner expects
+   *  MaxScore to skip most of the long list, and chooses
+   *  document-at-a-time evaluation.
+   */
+  private static final int MAX_DF_SKEW = 8;
+
+  /**
+   *  How queries are evaluated.
+   */
+  public static volatile Plan plan = Plan.AUTO;
+
+  private static final LongAdder daatQueries = new LongAdder ();
+  private static final LongAdder taatQueries = new LongAdder ();
+
+  /**
+   *  Each thread's accumulator.
+   */
+  private static final ThreadLocal<Accumulator> accumulators =
+    ThreadLocal.withInitial (Accumulator::new);
+
+  //  How the argument scores are combined.
+
+  private static final int SUM = 0;
+  private static final int OR = 1;
+  private static final int AND = 2;
+  private static final int INDRI_AND = 3;
+
+  /**
+   *  The number of postings that are scored together by
+   *  QrySop.scoreBlock.
+   */
+  private static final int BLOCK_SIZE = 128;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Indicates whether a query can be evaluated term at a time:  a BM25
+   *  #SUM, a Boolean #OR or #AND, or an Indri #AND, of scored terms (or
+   *  inverted list operators).
+   *  @param q The initialized query.
+   *  @param model The retrieval model.
+   *  @return True if evaluate can be used.
+   */
+  public static boolean canEvaluate (Qry q, RetrievalModel model) {
+    return ((q.args.size () > 0) && (combination (q, model) >= 0));
+  }
+
+  /**
+   *  Choose how to evaluate a query, and count the choice.  The query
+   *  must be initialized, and its collection statistics must be set.
+   *  @param q The query.
+   *  @param model The retrieval model.
+   *  @param r The list that the results are added to.
+   *  @return True if the query should be evaluated term at a time.
+   */
+  public static boolean choose (Qry q, RetrievalModel model, ScoreList r) {
+
+    boolean taat = false;
+
+    if ((plan != Plan.DAAT) && canEvaluate (q, model)) {
+      if (plan == Plan.TAAT) {
+        taat = true;
+      } else {
+        taat = ((q.args.size () > 1) && (q.args.size () <= MAX_TERMS));
+
+        if (taat && MaxScoreEvaluator.canEvaluate (q, model, r)) {
+          long minDf = Long.MAX_VALUE;
+          long maxDf = 0;
+
+          for (Qry q_i : q.args) {
+            int df = ((QryIop) q_i.args.get (0)).getDf ();
+            minDf = Math.min (minDf, df);
+            maxDf = Math.max (maxDf, df);
+          }
+
+          taat = (maxDf <= MAX_DF_SKEW * Math.max (minDf, 1));
+        }
+      }
+    }
+
+    if (taat) {
+      taatQueries.increment ();
+    } else {
+      daatQueries.increment ();
+    }
+
+    return taat;
+  }
+
+  /**
+   *  Get how a query's arguments are combined.
+   *  @return SUM, OR, AND, or INDRI_AND, or -1 if the query can't be
+   *    evaluated term at a time.
+   */
+  private static int combination (Qry q, RetrievalModel model) {
+
+    for (Qry q_i : q.args) {
+      if (! (q_i instanceof QrySopScore)) {
+        return -1;
+      }
+    }
+
+    if ((q instanceof QrySopSum) && (model instanceof RetrievalModelBM25)) {
+      return SUM;
+    }
+
+    boolean isBoolean = ((model instanceof RetrievalModelUnrankedBoolean) ||
+                         (model instanceof RetrievalModelRankedBoolean));
+
+    if ((q instanceof QrySopOr) && isBoolean) {
+      return OR;
+    }
+
+    if (q instanceof QrySopAnd) {
+      if (isBoolean) {
+        return AND;
+      }
+
+      if (model instanceof RetrievalModelIndri) {
+        return INDRI_AND;
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   *  Evaluate a query term at a time, adding its matches to a
+   *  ScoreList.  The query must be initialized, and canEvaluate must be
+   *  true.
+   *  @param q The query.
+   *  @param model The retrieval model.
+   *  @param r The list that the results are added to.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static void evaluate (Qry q, RetrievalModel model, ScoreList r)
+    throws IOException {
+
+    int n = q.args.size ();
+    int combination = combination (q, model);
+    boolean unranked = (model instanceof RetrievalModelUnrankedBoolean);
+    double exponent = (combination == INDRI_AND) ?
+      ((QrySopAnd) q).getExponent (0) : 0.0;
+
+    Accumulator acc = accumulators.get ();
+    acc.reserve (q.indexContext.getIndexReader ().maxDoc ());
+
+    //  scores[docid] is the document's combined score so far.  For
+    //  INDRI_AND, state[docid] is the number of arguments whose scores
+    //  have been multiplied in; otherwise it is the number of arguments
+    //  that match.  state[docid] is 0 for untouched documents.
+
+    double[] scores = acc.scores;
+    int[] state = acc.state;
+
+    try {
+      for (int i = 0; i < n; i++) {
+        QrySopScore q_i = (QrySopScore) q.args.get (i);
+        int m;
+
+        while ((m = q_i.scoreBlock (model, acc.blockDocids, BLOCK_SIZE,
+                                    acc.blockScores)) > 0) {
+          for (int j = 0; j < m; j++) {
+            int docid = acc.blockDocids[j];
+            double score = acc.blockScores[j];
+
+            if (state[docid] == 0) {
+              acc.touch (docid);
+              scores[docid] = (combination == OR) ? Double.MIN_VALUE :
+                              (combination == AND) ? Double.MAX_VALUE :
+                              (combination == INDRI_AND) ? 1.0 : 0.0;
+            }
+
+            switch (combination) {
+              case SUM:
+                scores[docid] += score;
+                state[docid] ++;
+                break;
+              case OR:
+                scores[docid] = unranked ? 1.0 : Math.max (score, scores[docid]);
+                state[docid] ++;
+                break;
+              case AND:
+                scores[docid] = unranked ? 1.0 : Math.min (scores[docid], score);
+                state[docid] ++;
+                break;
+              default:
+                multiplyDefaults (q, model, docid, i, scores, state, exponent);
+                scores[docid] *= Math.pow (score, exponent);
+                state[docid] = i + 1;
+            }
+          }
+        }
+      }
+
+      //  Collect the results in docid order.
+
+      Arrays.sort (acc.touched, 0, acc.numTouched);
+
+      for (int j = 0; j < acc.numTouched; j++) {
+        int docid = acc.touched[j];
+
+        if (combination == INDRI_AND) {
+          multiplyDefaults (q, model, docid, n, scores, state, exponent);
+        } else if ((combination == AND) && (state[docid] < n)) {
+          continue;
+        }
+
+        r.add (docid, scores[docid]);
+      }
+    } finally {
+      acc.clear ();
+    }
+  }
+
+  /**
+   *  Multiply a document's Indri score by the default scores of the
+   *  arguments that it skipped, up to argument end.
+   */
+  private static void multiplyDefaults (Qry q, RetrievalModel model,
+                                        int docid, int end, double[] scores,
+                                        int[] state, double exponent)
+    throws IOException {
+
+    for (int i = state[docid]; i < end; i++) {
+      QrySop q_i = (QrySop) q.args.get (i);
+      scores[docid] *= Math.pow (q_i.getDefaultScore (model, docid), exponent);
+    }
+
+    state[docid] = end;
+  }
+
+  /**
+   *  Get the planner's choices so far, for reporting.
+   *  @return A string version of the statistics.
+   */
+  public static String getStatistics () {
+    return String.format ("DAAT: %d, TAAT: %d",
+                          daatQueries.sum (), taatQueries.sum ());
+  }
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  A dense score accumulator and the list of documents that it has
+   *  touched.
+   */
+  private static class Accumulator {
+
+    double[] scores = new double[0];
+    int[] state = new int[0];
+    int[] touched = new int[16];
+    int numTouched = 0;
+    int[] blockDocids = new int[BLOCK_SIZE];
+    double[] blockScores = new double[BLOCK_SIZE];
+
+    /**
+     *  Make room for docids up to maxDoc - 1.
+     */
+    void reserve (int maxDoc) {
+      if (this.scores.length < maxDoc) {
+        this.scores = new double[maxDoc];
+        this.state = new int[maxDoc];
+      }
+    }
+
+    /**
+     *  Record that a document has been touched.
+     */
+    void touch (int docid) {
+      if (this.numTouched == this.touched.length) {
+        this.touched = Arrays.copyOf (this.touched, 2 * this.touched.length);
+      }
+
+      this.touched[this.numTouched ++] = docid;
+    }
+
+    /**
+     *  Reset the touched documents.
+     */
+    void clear () {
+      for (int j = 0; j < this.numTouched; j++) {
+        this.state[this.touched[j]] = 0;
+      }
+
+      this.numTouched = 0;
+    }
+  }
+}
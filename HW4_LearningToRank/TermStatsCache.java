@@ -0,0 +1,157 @@
+/*
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
+
+/**
+ * TermStatsCache is a bounded cache of term statistics (df and ctf)
+ * keyed by (field, term).  Query expansion and learning-to-rank look up
+ * the statistics of the same terms many times, and each lookup in
+ * Lucene is a term dictionary seek in every segment.
+ * <p>
+ * The cache is split into stripes by the hash of the term.  Each
+ * stripe is a small LRU map with its own lock, so threads that look up
+ * different terms rarely contend.  A miss fetches df and ctf together
+ * with one seek.
+ * </p>
+ */
+public class TermStatsCache {
+
+  /**
+   * The default maximum number of cached terms.
+   */
+  public static final int DEFAULT_CAPACITY = 1 << 16;
+
+  private static final int STRIPES = 16;
+
+  /**
+   * The statistics of one term.
+   */
+  public static class TermStats {
+
+    /**
+     * Document frequency: The number of documents that have the term
+     * in the field.
+     */
+    public final int df;
+
+    /**
+     * Collection term frequency: The number of times that the term
+     * occurs across all instances of the field.
+     */
+    public final long ctf;
+
+    private TermStats(int df, long ctf) {
+      this.df = df;
+      this.ctf = ctf;
+    }
+  }
+
+  /**
+   * One stripe of the cache; an LRU map.
+   */
+  private static class Stripe extends LinkedHashMap<Term, TermStats> {
+    private static final long serialVersionUID = 1L;
+
+    private final int capacity;
+
+    private Stripe(int capacity) {
+      super(16, 0.75f, true);
+      this.capacity = capacity;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Term, TermStats> eldest) {
+      return size() > this.capacity;
+    }
+  }
+
+  private final IndexReader reader;
+  private final Stripe[] stripes = new Stripe[STRIPES];
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /**
+   * @param reader IndexReader object created in {@link Idx}.
+   * @param capacity The maximum number of cached terms.
+   */
+  public TermStatsCache(IndexReader reader, int capacity) {
+    this.reader = reader;
+    for (int i = 0; i < STRIPES; i++) {
+      this.stripes[i] = new Stripe(Math.max(1, capacity / STRIPES));
+    }
+  }
+
+  /**
+   * Returns the statistics of a term, from the cache if possible.
+   *
+   * @param term The term, including its field.
+   * @return The term's statistics.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  public TermStats get(Term term) throws IOException {
+    int h = term.hashCode();
+    Stripe stripe = this.stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    TermStats stats;
+
+    synchronized (stripe) {
+      stats = stripe.get(term);
+    }
+
+    if (stats != null) {
+      this.hits.increment();
+      return stats;
+    }
+
+    //  Fetch df and ctf with one seek per segment.  Two threads may
+    //  fetch the same term at once; both get the same answer.
+
+    this.misses.increment();
+    TermContext context = TermContext.build(this.reader.getContext(), term);
+    stats = new TermStats(context.docFreq(), context.totalTermFreq());
+
+    synchronized (stripe) {
+      stripe.put(term, stats);
+    }
+
+    return stats;
+  }
+
+  /**
+   * Returns the number of lookups that were satisfied from the cache.
+   *
+   * @return The number of cache hits.
+   */
+  public long getHits() {
+    return this.hits.sum();
+  }
+
+  /**
+   * Returns the number of lookups that required an index access.
+   *
+   * @return The number of cache misses.
+   */
+  public long getMisses() {
+    return this.misses.sum();
+  }
+
+  /**
+   * Returns the cache's hit and miss counts, for reporting.
+   *
+   * @return A string version of the cache statistics.
+   */
+  @Override
+  public String toString() {
+    long h = getHits();
+    long m = getMisses();
+    return String.format("hits: %d, misses: %d, hit rate: %.1f%%",
+                         h, m, (h + m == 0) ? 0.0 : 100.0 * h / (h + m));
+  }
+}
@@ -33,6 +33,7 @@ public class TermVector {
    */
   public String fieldName;
 
+  private IndexContext index;
   private int fieldLength;
   private Terms luceneTerms;
   private int[] positions;	// Index of the stem that at this position
@@ -43,18 +44,30 @@ public class TermVector {
   //  --------------- Methods ---------------------------------------
 
   /**
-   *  @param docId An internal document id
+   *  @param docId An internal document id in the current index
    *  @param fieldName The name of a document field.
    *  @throws IOException Error accessing the Lucene index
    **/
   public TermVector(int docId, String fieldName) throws IOException {
+    this(Idx.getIndexContext(), docId, fieldName);
+  }
+
+  /**
+   *  @param index The index that contains the document
+   *  @param docId An internal document id
+   *  @param fieldName The name of a document field.
+   *  @throws IOException Error accessing the Lucene index
+   **/
+  public TermVector(IndexContext index, int docId, String fieldName)
+    throws IOException {
+    this.index = index;
     this.docId = docId;
     this.fieldName = fieldName;
     this.fieldLength = 0;
 
     //  Fetch the term vector, if one exists.
 
-    this.luceneTerms = Idx.INDEXREADER.getTermVector(docId, fieldName);
+    this.luceneTerms = index.getIndexReader().getTermVector(docId, fieldName);
 
     //  If Lucene doesn't have a term vector, our TermVector is empty.
     
@@ -196,7 +209,7 @@ public class TermVector {
    * @throws IOException  Error accessing the Lucene index
    */
   public long totalStemFreq(int i) throws IOException {
-    return Idx.INDEXREADER.totalTermFreq(terms[i]);
+    return this.index.getTotalTermFreq(terms[i]);
   }
   
   /**
@@ -206,7 +219,7 @@ public class TermVector {
    * @throws IOException Error accessing the Lucene index
    */
   public int stemDf(int i) throws IOException {
-    return Idx.INDEXREADER.docFreq(terms[i]);
+    return this.index.getDocFreq(terms[i]);
   }
   
 }